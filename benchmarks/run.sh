@@ -0,0 +1,36 @@
+#!/bin/sh
+#
+# Build the shell and its JMH benchmarks, run them, and compare with the recorded baseline.
+#
+#   ./run.sh                     run every benchmark, fail if any regressed
+#   ./run.sh --record            run every benchmark and make the results the new baseline
+#   ./run.sh ParserBenchmark -prof gc
+#                                extra arguments go to JMH: a benchmark filter, profilers, -p
+#
+# REGRESSION_THRESHOLD sets how much worse than baseline.csv (in percent, default 10) a
+# score may get before the comparison fails. Record the baseline on the machine the
+# comparison will run on: scores from different hardware are not comparable.
+
+set -e
+
+cd "$(dirname "$0")"
+record=false
+if [ "$1" = "--record" ]; then
+  record=true
+  shift
+fi
+
+(cd .. && mvn -B -q install -Ddir=target)
+mvn -B -q package
+
+java -jar target/benchmarks.jar -rf csv -rff target/results.csv "$@"
+
+if [ "$record" = true ]; then
+  cp target/results.csv baseline.csv
+  echo "Recorded target/results.csv as baseline.csv"
+elif [ -f baseline.csv ]; then
+  java -cp target/benchmarks.jar io.codecrafters.shell.bench.BaselineCompare \
+    baseline.csv target/results.csv "${REGRESSION_THRESHOLD:-10}"
+else
+  echo "No baseline.csv yet: run ./run.sh --record to create one"
+fi
@@ -0,0 +1,138 @@
+package io.codecrafters.shell.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares a JMH CSV result file (-rf csv) with a recorded baseline and exits 1 when any
+// benchmark got slower by more than the threshold:
+//
+//   java -cp benchmarks.jar io.codecrafters.shell.bench.BaselineCompare baseline.csv results.csv [percent]
+//
+// Throughput scores (ops per time unit) regress when they fall; every other mode and the
+// -prof gc allocation rows (gc.alloc.rate.norm, bytes per op) regress when they rise.
+// Other profiler rows are too noisy to gate on and are skipped.
+public final class BaselineCompare {
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10.0;
+
+    private record Score(double value, String unit) {}
+
+    private BaselineCompare() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: BaselineCompare <baseline.csv> <results.csv> [threshold-percent]");
+            System.exit(2);
+        }
+        double threshold = args.length == 3 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+        Map<String, Score> baseline = read(Path.of(args[0]));
+        Map<String, Score> current = read(Path.of(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-8s %s: %.3f %s%n", "NEW", entry.getKey(), now.value(), now.unit());
+                continue;
+            }
+            if (!before.unit().equals(now.unit())) {
+                System.out.printf("%-8s %s: unit changed from %s to %s%n", "SKIP", entry.getKey(), before.unit(), now.unit());
+                continue;
+            }
+            // Positive means worse, whichever direction is better for this score
+            double change = (now.value() - before.value()) / before.value() * 100.0;
+            if (higherIsBetter(now.unit())) {
+                change = -change;
+            }
+            boolean regressed = change > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-8s %s: %.3f -> %.3f %s (%+.1f%%)%n", regressed ? "REGRESS" : "ok",
+                    entry.getKey(), before.value(), now.value(), now.unit(), change);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf("%-8s %s%n", "MISSING", key);
+            }
+        }
+
+        System.out.printf("%d regression(s) beyond %.1f%%%n", regressions, threshold);
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static boolean higherIsBetter(String unit) {
+        return unit.startsWith("ops/");
+    }
+
+    // Benchmark name, mode and every parameter make the key; the score and unit the value
+    private static Map<String, Score> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        if (lines.isEmpty()) {
+            return scores;
+        }
+        List<String> header = fields(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+            throw new IOException(file + ": not a JMH CSV result file");
+        }
+
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> row = fields(line);
+            String name = row.get(benchmark).replace("io.codecrafters.shell.bench.", "");
+            int secondary = name.indexOf(":");
+            if (secondary >= 0 && !name.endsWith("gc.alloc.rate.norm")) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(name).append(" [").append(row.get(mode)).append(']');
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+                }
+            }
+            scores.put(key.toString(), new Score(Double.parseDouble(row.get(score).replace(',', '.')), row.get(unit)));
+        }
+        return scores;
+    }
+
+    // One CSV record: fields may be quoted, with "" standing for a literal quote
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
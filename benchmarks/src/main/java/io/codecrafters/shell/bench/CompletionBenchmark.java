@@ -0,0 +1,32 @@
+package io.codecrafters.shell.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Tab completion over the real PATH once it is indexed: the staleness check plus the
+// binary searches into the sorted name array
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CompletionBenchmark {
+    @Param({"g", "gi", "zzz"})
+    public String prefix;
+
+    private Object completer;
+
+    @Setup
+    public void setUp() throws Throwable {
+        String path = System.getenv("PATH");
+        completer = ShellAccess.newCompleter(ShellAccess.standardBuiltins(), () -> path);
+        ShellAccess.refresh(completer);
+    }
+
+    @Benchmark
+    public List<?> candidates() throws Throwable {
+        return ShellAccess.candidates(completer, prefix);
+    }
+}
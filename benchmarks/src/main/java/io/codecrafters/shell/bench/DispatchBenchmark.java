@@ -0,0 +1,54 @@
+package io.codecrafters.shell.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Builtin dispatch: the registry lookup plus the call itself, with output going to a sink
+// over a discarding stream so only the shell's own work is measured
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    @Param({"true", "echo hello world", "pwd"})
+    public String command;
+
+    private Object builtins;
+    private Object commandLine;
+    private String name;
+    private Object out;
+    private Object io;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object shell = ShellAccess.newShell(Files.createTempDirectory("dispatch").toString(), System.getenv());
+        builtins = ShellAccess.standardBuiltins();
+        commandLine = ShellAccess.parse(ShellAccess.newParser(), command);
+        name = command.split(" ")[0];
+        out = ShellAccess.sink(OutputStream.nullOutputStream());
+        io = ShellAccess.ioContext(shell, InputStream.nullInputStream(), out, ShellAccess.sink(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public Object lookup() throws Throwable {
+        return ShellAccess.builtin(builtins, name);
+    }
+
+    @Benchmark
+    public int dispatch() throws Throwable {
+        int status = ShellAccess.runBuiltin(ShellAccess.builtin(builtins, name), commandLine, io);
+        ShellAccess.flush(out);
+        return status;
+    }
+
+    // What every external command pays before its PATH search
+    @Benchmark
+    public Object miss() throws Throwable {
+        return ShellAccess.builtin(builtins, "no-such-builtin");
+    }
+}
@@ -0,0 +1,53 @@
+package io.codecrafters.shell.bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A million-iteration for loop. "tree" parses the loop once and walks it, as the shell
+// does; "reparse" parses and runs the body line on every iteration, which is what a loop
+// cost before control flow was parsed into a tree. Both go through the interpreter, so
+// the difference is the parsing alone. The bodies are builtins that print nothing.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopBenchmark {
+    @Param({"1000000"})
+    public int iterations;
+
+    @Param({"true", ": a 'b c' \"$i\""})
+    public String body;
+
+    private Object parser;
+    private Object interpreter;
+    private Object loop;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object shell = ShellAccess.newShell(Files.createTempDirectory("loop").toString(), System.getenv());
+        interpreter = ShellAccess.interpreter(shell);
+        parser = ShellAccess.newScriptParser();
+        StringBuilder text = new StringBuilder(iterations * 2 + 64).append("for i in");
+        for (int i = 0; i < iterations; i++) {
+            text.append(" x");
+        }
+        loop = ShellAccess.parseProgram(parser, text.append("; do ").append(body).append("; done").toString());
+    }
+
+    @Benchmark
+    public int tree() throws Throwable {
+        return ShellAccess.run(interpreter, loop);
+    }
+
+    @Benchmark
+    public int reparse() throws Throwable {
+        int status = 0;
+        for (int i = 0; i < iterations; i++) {
+            status = ShellAccess.run(interpreter, ShellAccess.parseProgram(parser, body));
+        }
+        return status;
+    }
+}
@@ -0,0 +1,48 @@
+package io.codecrafters.shell.bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// LineParser over each quoting and escaping style the shell accepts. The parser instance
+// is reused across calls, as Shell does. Run with -prof gc to see allocation per line.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    private static final Map<String, String> LINES = Map.of(
+            "plain", "ls -la /usr/local/bin /tmp /var/log",
+            "single", "echo 'hello   world' 'it''s' 'a b c' 'x'",
+            "double", "echo \"hello   world\" \"quote \\\" inside\" \"back\\\\slash\" \"it's\"",
+            "escapes", "echo hello\\ world \\'x\\' a\\\\b \\\"q\\\"",
+            "redirect", "cat notes.txt 2>>errors.log 1>output.txt",
+            "pipeline", "cat /etc/passwd | grep root | wc -l ; echo done &");
+
+    @Param({"plain", "single", "double", "escapes", "redirect", "pipeline"})
+    public String mix;
+
+    private Object parser;
+    private String line;
+
+    @Setup
+    public void setUp() throws Throwable {
+        parser = ShellAccess.newParser();
+        line = LINES.get(mix);
+    }
+
+    // One command line: tokens plus redirects
+    @Benchmark
+    public Object parse() throws Throwable {
+        return ShellAccess.parse(parser, line);
+    }
+
+    // The whole input line, split into pipelines and stages
+    @Benchmark
+    public List<?> parseLine() throws Throwable {
+        return ShellAccess.parseLine(parser, line);
+    }
+}
@@ -0,0 +1,58 @@
+package io.codecrafters.shell.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CommandHash with a short PATH and a long one whose first entries are empty directories,
+// the shape of a PATH grown by version managers and package tools
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PathLookupBenchmark {
+    private static final int LONG_PATH_DIRECTORIES = 64;
+
+    @Param({"short", "long"})
+    public String path;
+
+    private Object hash;
+
+    @Setup
+    public void setUp() throws Throwable {
+        String value = "/usr/local/bin:/usr/bin:/bin";
+        if (path.equals("long")) {
+            Path root = Files.createTempDirectory("path");
+            StringJoiner joiner = new StringJoiner(":");
+            for (int i = 0; i < LONG_PATH_DIRECTORIES; i++) {
+                joiner.add(Files.createDirectory(root.resolve("bin" + i)).toString());
+            }
+            value = joiner + ":" + value;
+        }
+        String pathValue = value;
+        hash = ShellAccess.newCommandHash(() -> pathValue);
+    }
+
+    // First lookup of a command: a stat per PATH directory until it is found
+    @Benchmark
+    public String cold() throws Throwable {
+        ShellAccess.clear(hash);
+        return ShellAccess.lookup(hash, "ls");
+    }
+
+    // Hashed: one map lookup and one stat to revalidate
+    @Benchmark
+    public String warm() throws Throwable {
+        return ShellAccess.lookup(hash, "ls");
+    }
+
+    // Misses are not cached, so every one searches the whole PATH
+    @Benchmark
+    public String miss() throws Throwable {
+        return ShellAccess.lookup(hash, "no-such-command");
+    }
+}
@@ -0,0 +1,37 @@
+package io.codecrafters.shell.bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Bulk throughput of a pipeline moving 2 GiB. "external" is process to process through a
+// kernel pipe; "builtin" ends in the in-process wc, so every byte crosses into the JVM.
+// Divide the byte count by the time for bytes per second.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param({"2147483648"})
+    public long bytes;
+
+    @Param({"external", "builtin"})
+    public String sink;
+
+    private Object shell;
+    private Object pipeline;
+
+    @Setup
+    public void setUp() throws Throwable {
+        shell = ShellAccess.newShell(Files.createTempDirectory("pipeline").toString(), System.getenv());
+        String consumer = sink.equals("external") ? "cat > /dev/null" : "wc -c > /dev/null";
+        pipeline = ShellAccess.parsePipeline(ShellAccess.newParser(), "head -c " + bytes + " /dev/zero | " + consumer);
+    }
+
+    @Benchmark
+    public void transfer() throws Throwable {
+        ShellAccess.execute(shell, pipeline);
+    }
+}
@@ -0,0 +1,43 @@
+package io.codecrafters.shell.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// `echo` redirected to a file, end to end through Shell.execute: target preparation,
+// opening the file, the builtin and closing it again
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RedirectBenchmark {
+    @Param({">", ">>", "2>", "2>>"})
+    public String operator;
+
+    private Path directory;
+    private Path target;
+    private Object shell;
+    private Object pipeline;
+
+    @Setup
+    public void setUp() throws Throwable {
+        directory = Files.createTempDirectory("redirect");
+        target = directory.resolve("logs").resolve("out.txt");
+        shell = ShellAccess.newShell(directory.toString(), System.getenv());
+        pipeline = ShellAccess.parsePipeline(ShellAccess.newParser(), "echo hello world " + operator + " logs/out.txt");
+    }
+
+    // Appends would otherwise grow the file without bound
+    @Setup(Level.Iteration)
+    public void truncate() throws Exception {
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public void echo() throws Throwable {
+        ShellAccess.execute(shell, pipeline);
+    }
+}
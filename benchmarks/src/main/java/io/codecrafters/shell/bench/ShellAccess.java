@@ -0,0 +1,198 @@
+package io.codecrafters.shell.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// The shell's classes live in the unnamed package, which code in a named package cannot
+// import, and JMH will not generate benchmarks outside a named package. So they are
+// reached through method handles, resolved once and held in static finals where the JIT
+// inlines them like direct calls. Every handle is erased to Object, so the wrappers below
+// cast at the call site and invokeExact matches.
+final class ShellAccess {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static final Class<?> LINE_PARSER = type("LineParser");
+    static final Class<?> COMMAND_LINE = type("CommandLine");
+    static final Class<?> PIPELINE = type("Pipeline");
+    static final Class<?> SHELL = type("Shell");
+    static final Class<?> BUILTINS = type("Builtins");
+    static final Class<?> BUILTIN = type("Builtin");
+    static final Class<?> IO_CONTEXT = type("IoContext");
+    static final Class<?> OUTPUT_SINK = type("OutputSink");
+    static final Class<?> COMMAND_HASH = type("CommandHash");
+    static final Class<?> COMPLETER = type("Completer");
+    static final Class<?> SCRIPT_PARSER = type("ScriptParser");
+    static final Class<?> NODE = type("Node");
+    static final Class<?> INTERPRETER = type("Interpreter");
+
+    private static final MethodHandle NEW_PARSER = constructor(LINE_PARSER);
+    private static final MethodHandle PARSE = method(LINE_PARSER, "parse", COMMAND_LINE, String.class);
+    private static final MethodHandle PARSE_LINE = method(LINE_PARSER, "parseLine", List.class, String.class);
+    private static final MethodHandle PARSE_PIPELINE = method(LINE_PARSER, "parsePipeline", PIPELINE, String.class);
+    private static final MethodHandle NEW_SCRIPT_PARSER = constructor(SCRIPT_PARSER);
+    private static final MethodHandle PARSE_PROGRAM = method(SCRIPT_PARSER, "parse", NODE, String.class);
+
+    private static final MethodHandle NEW_SHELL = constructor(SHELL, InputStream.class, PrintStream.class,
+            PrintStream.class, Map.class, String.class, List.class, boolean.class, boolean.class);
+    private static final MethodHandle EXECUTE = method(SHELL, "execute", int.class, PIPELINE);
+    private static final MethodHandle INTERPRETER_OF = method(SHELL, "interpreter", INTERPRETER);
+    private static final MethodHandle RUN = method(INTERPRETER, "run", int.class, NODE);
+
+    private static final MethodHandle STANDARD_BUILTINS = staticMethod(BUILTINS, "standard", BUILTINS);
+    private static final MethodHandle GET_BUILTIN = method(BUILTINS, "get", BUILTIN, String.class);
+    private static final MethodHandle RUN_BUILTIN = method(BUILTIN, "run", int.class, COMMAND_LINE, IO_CONTEXT);
+    private static final MethodHandle NEW_IO_CONTEXT = constructor(IO_CONTEXT, SHELL, InputStream.class,
+            OUTPUT_SINK, OUTPUT_SINK);
+    private static final MethodHandle SINK_OF = staticMethod(OUTPUT_SINK, "of", OUTPUT_SINK, OutputStream.class);
+    private static final MethodHandle SINK_FLUSH = method(OUTPUT_SINK, "flush", void.class);
+
+    private static final MethodHandle NEW_COMMAND_HASH = constructor(COMMAND_HASH, Supplier.class, LongSupplier.class);
+    private static final MethodHandle LOOKUP_COMMAND = method(COMMAND_HASH, "lookup", String.class, String.class);
+    private static final MethodHandle CLEAR_HASH = method(COMMAND_HASH, "clear", void.class);
+
+    private static final MethodHandle NEW_COMPLETER = constructor(COMPLETER, BUILTINS, Supplier.class);
+    private static final MethodHandle CANDIDATES = method(COMPLETER, "candidates", List.class, String.class);
+    private static final MethodHandle REFRESH = method(COMPLETER, "refresh", void.class);
+
+    private ShellAccess() {}
+
+    static Object newParser() throws Throwable {
+        return (Object) NEW_PARSER.invokeExact();
+    }
+
+    static Object parse(Object parser, String line) throws Throwable {
+        return (Object) PARSE.invokeExact(parser, (Object) line);
+    }
+
+    static List<?> parseLine(Object parser, String line) throws Throwable {
+        return (List<?>) (Object) PARSE_LINE.invokeExact(parser, (Object) line);
+    }
+
+    static Object parsePipeline(Object parser, String line) throws Throwable {
+        return (Object) PARSE_PIPELINE.invokeExact(parser, (Object) line);
+    }
+
+    static Object newScriptParser() throws Throwable {
+        return (Object) NEW_SCRIPT_PARSER.invokeExact();
+    }
+
+    static Object parseProgram(Object parser, String text) throws Throwable {
+        return (Object) PARSE_PROGRAM.invokeExact(parser, (Object) text);
+    }
+
+    // A non-interactive session on the benchmark JVM's own stdio, in the given directory
+    static Object newShell(String directory, Map<String, String> environment) throws Throwable {
+        return (Object) NEW_SHELL.invokeExact((Object) System.in, (Object) System.out, (Object) System.err,
+                (Object) environment, (Object) directory, (Object) List.of(), true, false);
+    }
+
+    static int execute(Object shell, Object pipeline) throws Throwable {
+        return (int) EXECUTE.invokeExact(shell, pipeline);
+    }
+
+    static Object interpreter(Object shell) throws Throwable {
+        return (Object) INTERPRETER_OF.invokeExact(shell);
+    }
+
+    static int run(Object interpreter, Object program) throws Throwable {
+        return (int) RUN.invokeExact(interpreter, program);
+    }
+
+    static Object standardBuiltins() throws Throwable {
+        return (Object) STANDARD_BUILTINS.invokeExact();
+    }
+
+    static Object builtin(Object builtins, String name) throws Throwable {
+        return (Object) GET_BUILTIN.invokeExact(builtins, (Object) name);
+    }
+
+    static int runBuiltin(Object builtin, Object commandLine, Object io) throws Throwable {
+        return (int) RUN_BUILTIN.invokeExact(builtin, commandLine, io);
+    }
+
+    static Object sink(OutputStream stream) throws Throwable {
+        return (Object) SINK_OF.invokeExact((Object) stream);
+    }
+
+    static void flush(Object sink) throws Throwable {
+        SINK_FLUSH.invokeExact(sink);
+    }
+
+    static Object ioContext(Object shell, InputStream in, Object out, Object err) throws Throwable {
+        return (Object) NEW_IO_CONTEXT.invokeExact(shell, (Object) in, out, err);
+    }
+
+    // A hash over a PATH that never changes
+    static Object newCommandHash(Supplier<String> path) throws Throwable {
+        LongSupplier version = () -> 0;
+        return (Object) NEW_COMMAND_HASH.invokeExact((Object) path, (Object) version);
+    }
+
+    static String lookup(Object hash, String command) throws Throwable {
+        return (String) (Object) LOOKUP_COMMAND.invokeExact(hash, (Object) command);
+    }
+
+    static void clear(Object hash) throws Throwable {
+        CLEAR_HASH.invokeExact(hash);
+    }
+
+    static Object newCompleter(Object builtins, Supplier<String> path) throws Throwable {
+        return (Object) NEW_COMPLETER.invokeExact(builtins, (Object) path);
+    }
+
+    static List<?> candidates(Object completer, String prefix) throws Throwable {
+        return (List<?>) (Object) CANDIDATES.invokeExact(completer, (Object) prefix);
+    }
+
+    static void refresh(Object completer) throws Throwable {
+        REFRESH.invokeExact(completer);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("shell class " + name + " is not on the classpath", e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookupIn(Class<?> owner) throws IllegalAccessException {
+        // Both sides are in the unnamed module, so private access is always granted
+        return MethodHandles.privateLookupIn(owner, LOOKUP);
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookupIn(owner).findConstructor(owner, MethodType.methodType(void.class, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner.getName() + " constructor", e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookupIn(owner).findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner.getName() + "." + name, e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookupIn(owner).findStatic(owner, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(owner.getName() + "." + name, e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.codecrafters.shell.bench;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Spawn and wait for /bin/true through Shell.execute: lookup, ProcessBuilder.start and
+// waitFor, the floor under every external command. `variables` more are exported on top
+// of the JVM's environment, as a profile that exports a few hundred would.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class SpawnBenchmark {
+    @Param({"/bin/true", "/bin/true | /bin/true"})
+    public String command;
+
+    @Param({"0", "400"})
+    public int variables;
+
+    private Object shell;
+    private Object pipeline;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Map<String, String> environment = new HashMap<>(System.getenv());
+        for (int i = 0; i < variables; i++) {
+            environment.put("SPAWN_BENCH_" + i, "value " + i);
+        }
+        shell = ShellAccess.newShell(Files.createTempDirectory("spawn").toString(), environment);
+        pipeline = ShellAccess.parsePipeline(ShellAccess.newParser(), command);
+    }
+
+    @Benchmark
+    public void spawnAndWait() throws Throwable {
+        ShellAccess.execute(shell, pipeline);
+    }
+}
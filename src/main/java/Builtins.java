@@ -0,0 +1,107 @@
+import java.io.*;
+import java.util.*;
+
+// A command that runs inside the shell process instead of forking. Returns its exit status.
+interface Builtin {
+    int run(CommandLine command, IoContext io) throws IOException;
+}
+
+// Everything a builtin reads from and writes to, prepared by the shell before it runs
+class IoContext {
+    private final Shell shell;
+    private final InputStream in;
+    private final OutputSink out;
+    private final OutputSink err;
+
+    public IoContext(Shell shell, InputStream in, OutputSink out, OutputSink err) {
+        this.shell = shell;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    public Shell shell() {
+        return shell;
+    }
+
+    public InputStream in() {
+        return in;
+    }
+
+    public OutputSink out() {
+        return out;
+    }
+
+    public OutputSink err() {
+        return err;
+    }
+}
+
+// Name to implementation table; dispatch is a single hash lookup
+class Builtins {
+    private final Map<String, Builtin> table = new HashMap<>();
+    private final Set<String> shellState = new HashSet<>();
+    private final Set<String> standIns = new HashSet<>();
+
+    public static Builtins standard() {
+        Builtins builtins = new Builtins();
+        ShellBuiltins.registerAll(builtins);
+        TextBuiltins.registerAll(builtins);
+        JobBuiltins.registerAll(builtins);
+        HistoryBuiltins.registerAll(builtins);
+        ParallelBuiltins.registerAll(builtins);
+        StatsBuiltins.registerAll(builtins);
+        ParseCacheBuiltins.registerAll(builtins);
+        ControlBuiltins.registerAll(builtins);
+        EnvironmentBuiltins.registerAll(builtins);
+        return builtins;
+    }
+
+    public void register(String name, Builtin builtin) {
+        table.put(name, builtin);
+    }
+
+    // Builtins such as cd that change the shell itself; inside a pipeline they run in a
+    // subshell in bash, so there they run against a copy of the session
+    public void registerShellBuiltin(String name, Builtin builtin) {
+        table.put(name, builtin);
+        shellState.add(name);
+    }
+
+    // In-process versions of programs such as cat, for the common options only; `type`
+    // reports the program on PATH, which runs whatever they do not implement
+    public void registerStandIn(String name, Builtin builtin) {
+        table.put(name, builtin);
+        standIns.add(name);
+    }
+
+    // Run a builtin so that a bug in one fails that command rather than ending the session
+    static int run(Builtin builtin, String name, CommandLine command, IoContext io) throws IOException {
+        try {
+            return builtin.run(command, io);
+        } catch (RuntimeException e) {
+            io.err().println(name + ": " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            return 1;
+        }
+    }
+
+    public Builtin get(String name) {
+        return table.get(name);
+    }
+
+    public boolean contains(String name) {
+        return table.containsKey(name);
+    }
+
+    public boolean isStandIn(String name) {
+        return standIns.contains(name);
+    }
+
+    public boolean affectsShell(String name) {
+        return shellState.contains(name);
+    }
+
+    public SortedSet<String> names() {
+        return new TreeSet<>(table.keySet());
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.File;
+import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Remembers where commands were found on PATH, like bash's hash table
+class CommandHash {
+    private final Supplier<String> pathSource;
+    // Changes whenever PATH may have, so an unchanged PATH costs no string compare
+    private final LongSupplier pathVersion;
+    private long currentVersion = -1;
+    private final Map<String, String> table = new HashMap<>();
+    private final Map<String, Integer> hits = new HashMap<>();
+    private String currentPath;
+    private String[] directories = new String[0];
+
+    public CommandHash() {
+        this(() -> System.getenv("PATH"), () -> 0);
+    }
+
+    public CommandHash(Supplier<String> pathSource, LongSupplier pathVersion) {
+        this.pathSource = pathSource;
+        this.pathVersion = pathVersion;
+    }
+
+    // Resolve a command name to an absolute path, or null if it is not on PATH
+    public synchronized String lookup(String command) {
+        long started = Stats.start();
+        try {
+            return resolve(command);
+        } finally {
+            Stats.record(Stats.Phase.RESOLVE, started);
+        }
+    }
+
+    private String resolve(String command) {
+        syncPath();
+
+        String cached = table.get(command);
+        if (cached != null) {
+            // One stat to make sure the binary has not disappeared since we cached it
+            if (new File(cached).canExecute()) {
+                hits.merge(command, 1, Integer::sum);
+                return cached;
+            }
+            forget(command);
+        }
+
+        for (String dir : directories) {
+            File file = new File(dir, command);
+            if (file.isFile() && file.canExecute()) {
+                String resolved = file.getAbsolutePath();
+                table.put(command, resolved);
+                hits.put(command, 1);
+                return resolved;
+            }
+        }
+        return null;
+    }
+
+    // Eagerly fill the table from a scan of every PATH directory
+    public synchronized void hashAll() {
+        syncPath();
+        for (String dir : directories) {
+            File[] files = new File(dir).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                // Earlier PATH entries win, exactly as in lookup()
+                if (!table.containsKey(file.getName()) && file.isFile() && file.canExecute()) {
+                    table.put(file.getName(), file.getAbsolutePath());
+                    hits.put(file.getName(), 0);
+                }
+            }
+        }
+    }
+
+    public synchronized void forget(String command) {
+        table.remove(command);
+        hits.remove(command);
+    }
+
+    public synchronized void clear() {
+        table.clear();
+        hits.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    // Entries sorted by command name, mapped to their hit counts
+    public synchronized SortedMap<String, Integer> hitCounts() {
+        return new TreeMap<>(hits);
+    }
+
+    public synchronized String get(String command) {
+        return table.get(command);
+    }
+
+    private void syncPath() {
+        long version = pathVersion.getAsLong();
+        if (version == currentVersion) {
+            return;
+        }
+        currentVersion = version;
+        String path = pathSource.get();
+        if (Objects.equals(path, currentPath)) {
+            return;
+        }
+        // PATH changed: every cached location may now be wrong
+        currentPath = path;
+        directories = path == null || path.isEmpty() ? new String[0] : path.split(":");
+        clear();
+    }
+}
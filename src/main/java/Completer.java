@@ -0,0 +1,134 @@
+import java.io.File;
+import java.util.*;
+import java.util.function.Supplier;
+
+// Command-name completion over builtins and every executable on PATH. Names are kept in
+// one sorted array, so a lookup is two binary searches however many executables there
+// are. Each PATH directory is listed once and rescanned only when its mtime changes.
+class Completer {
+    private final Builtins builtins;
+    private final Supplier<String> pathSource;
+    private final Map<String, Listing> listings = new HashMap<>();
+    private volatile String[] names = new String[0];
+    private volatile String indexedPath;
+    private volatile boolean indexed;
+
+    private static class Listing {
+        final long modified;
+        final String[] names;
+
+        Listing(long modified, String[] names) {
+            this.modified = modified;
+            this.names = names;
+        }
+    }
+
+    public Completer(Builtins builtins, Supplier<String> pathSource) {
+        this.builtins = builtins;
+        this.pathSource = pathSource;
+    }
+
+    // Build the index off the critical path so the first Tab does not pay for it
+    public void startIndexing() {
+        Thread.ofVirtual().name("completion-index").start(this::refresh);
+    }
+
+    // All names starting with the prefix, in sorted order
+    public List<String> candidates(String prefix) {
+        if (!indexed || isStale()) {
+            refresh();
+        }
+        String[] snapshot = names;
+        int from = lowerBound(snapshot, prefix);
+        int to = lowerBound(snapshot, prefix + Character.MAX_VALUE);
+        return Arrays.asList(snapshot).subList(from, to);
+    }
+
+    // The longest string every candidate starts with
+    public static String commonPrefix(List<String> candidates) {
+        if (candidates.isEmpty()) {
+            return "";
+        }
+        String first = candidates.get(0);
+        String last = candidates.get(candidates.size() - 1);
+        // Candidates are sorted, so the first and last differ the most
+        int n = 0;
+        while (n < first.length() && n < last.length() && first.charAt(n) == last.charAt(n)) {
+            n++;
+        }
+        return first.substring(0, n);
+    }
+
+    // One stat per PATH directory; cheap enough to do on every Tab
+    private boolean isStale() {
+        String path = pathSource.get();
+        if (!Objects.equals(path, indexedPath)) {
+            return true;
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Listing> entry : listings.entrySet()) {
+                if (new File(entry.getKey()).lastModified() != entry.getValue().modified) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Rescan only the directories that changed, then rebuild the sorted array
+    public synchronized void refresh() {
+        String path = pathSource.get();
+        List<String> directories = path == null || path.isEmpty() ? List.of() : Arrays.asList(path.split(":"));
+        boolean changed = !indexed || !Objects.equals(path, indexedPath);
+
+        if (listings.keySet().retainAll(new HashSet<>(directories))) {
+            changed = true;
+        }
+        for (String dir : directories) {
+            long modified = new File(dir).lastModified();
+            Listing listing = listings.get(dir);
+            if (listing == null || listing.modified != modified) {
+                listings.put(dir, scan(dir, modified));
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            TreeSet<String> all = new TreeSet<>(builtins.names());
+            for (Listing listing : listings.values()) {
+                all.addAll(Arrays.asList(listing.names));
+            }
+            names = all.toArray(new String[0]);
+        }
+        indexedPath = path;
+        indexed = true;
+    }
+
+    private static Listing scan(String dir, long modified) {
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return new Listing(modified, new String[0]);
+        }
+        List<String> executables = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.isFile() && file.canExecute()) {
+                executables.add(file.getName());
+            }
+        }
+        return new Listing(modified, executables.toArray(new String[0]));
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A machine-readable record of every command a session runs, one JSON object per line:
+//
+//   {"argv":[["grep","x"],["wc","-l"]],"status":1,"pipestatus":[0,1],"start":1760000000123,"elapsed_us":5120,"background":false}
+//
+// SHELL_EVENTS says where it goes: a file descriptor the shell was started with, as in
+// SHELL_EVENTS=3 with 3>events.ndjson, or a file to append to. start is epoch
+// milliseconds; a background pipeline is recorded when it finishes.
+//
+// A command only queues its record; formatting and writing happen on a writer thread,
+// in batches. A full queue drops records rather than wait, and the writer then adds
+// {"dropped":N}, so a reader that stalls never stalls the shell.
+class EventLog implements Closeable {
+    private static final int CAPACITY = 1 << 14;
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    // How long the writer lets records gather after a write, so a burst of short commands
+    // costs one wakeup and one write per batch rather than per command
+    private static final long BATCH_MILLIS = 1;
+
+    record Event(List<List<String>> argv, int status, int[] pipestatus, long start, long elapsedNanos,
+                 boolean background) {}
+
+    private static final Event END = new Event(List.of(), 0, new int[0], 0, 0, false);
+
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Writer out;
+    private final Thread writer;
+
+    private EventLog(OutputStream stream) {
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        writer = Thread.ofPlatform().daemon().name("event-writer").start(this::drain);
+    }
+
+    // Null unless SHELL_EVENTS is set. A descriptor number only means something to a local
+    // session: a remote client's descriptors are not the server's.
+    public static EventLog open(Map<String, String> settings, boolean local, PrintStream err) {
+        String target = settings.get("SHELL_EVENTS");
+        if (target == null || target.isEmpty()) {
+            return null;
+        }
+        boolean descriptor = target.chars().allMatch(c -> c >= '0' && c <= '9');
+        if (descriptor && !local) {
+            err.println("SHELL_EVENTS: " + target + ": a remote session needs a file name");
+            return null;
+        }
+        try {
+            return new EventLog(new FileOutputStream(descriptor ? "/dev/fd/" + target : target, true));
+        } catch (IOException e) {
+            err.println("SHELL_EVENTS: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void record(Event event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Writes out what is queued, waiting a bounded time for a slow reader
+    @Override
+    public void close() throws IOException {
+        try {
+            if (queue.offer(END, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                writer.join(CLOSE_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>();
+        StringBuilder line = new StringBuilder(256);
+        try (out) {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Event event : batch) {
+                    if (event == END) {
+                        writeDropped(line);
+                        return;
+                    }
+                    line.setLength(0);
+                    format(event, line);
+                    out.write(line.toString());
+                }
+                writeDropped(line);
+                out.flush();
+                batch.clear();
+                Thread.sleep(BATCH_MILLIS);
+            }
+        } catch (InterruptedException | IOException ignored) {
+            // The reader has gone; the shell carries on without the log
+        }
+    }
+
+    private void writeDropped(StringBuilder line) throws IOException {
+        long count = dropped.getAndSet(0);
+        if (count > 0) {
+            line.setLength(0);
+            out.write(line.append("{\"dropped\":").append(count).append("}\n").toString());
+        }
+    }
+
+    private static void format(Event event, StringBuilder line) {
+        line.append("{\"argv\":[");
+        for (int s = 0; s < event.argv().size(); s++) {
+            List<String> argv = event.argv().get(s);
+            line.append(s > 0 ? ",[" : "[");
+            for (int i = 0; i < argv.size(); i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                quote(argv.get(i), line);
+            }
+            line.append(']');
+        }
+        line.append("],\"status\":").append(event.status()).append(",\"pipestatus\":[");
+        for (int s = 0; s < event.pipestatus().length; s++) {
+            line.append(s > 0 ? "," : "").append(event.pipestatus()[s]);
+        }
+        line.append("],\"start\":").append(event.start())
+                .append(",\"elapsed_us\":").append(event.elapsedNanos() / 1000)
+                .append(",\"background\":").append(event.background())
+                .append("}\n");
+    }
+
+    private static void quote(String text, StringBuilder line) {
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\t' -> line.append("\\t");
+                case '\r' -> line.append("\\r");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+}
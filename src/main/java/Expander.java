@@ -0,0 +1,549 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The expansion stage between parsing and execution: $NAME and ${NAME}, $(...) command
+// substitution, field splitting of unquoted results, and pathname globbing. Commands the
+// parser found nothing to expand in pass through untouched.
+//
+// Globbing lists each directory once per input line, however many patterns touch it, and
+// matches names with a regex compiled once per pattern, so a pattern over a directory of
+// 100k files costs one directory read and 100k regex matches on a reused Matcher.
+class Expander {
+    // Output kept from one $(...); the rest of the output is drained and dropped
+    static final int SUBSTITUTION_LIMIT = 1 << 24;
+    private static final int PATTERN_CACHE_SIZE = 128;
+    // Scratch space kept between words; more than this is let go after use
+    private static final int RETAINED_CAPACITY = 1 << 16;
+
+    // Marks on expanded characters
+    private static final byte GLOB = 1;
+    private static final byte SPLIT = 2;
+
+    private final Shell shell;
+    private final Map<String, String[]> listings = new HashMap<>();
+    private final Map<String, Pattern> patterns = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PATTERN_CACHE_SIZE;
+        }
+    };
+
+    // The word being expanded, and a mark per character of it
+    private final StringBuilder text = new StringBuilder();
+    private byte[] marks = new byte[64];
+
+    public Expander(Shell shell) {
+        this.shell = shell;
+    }
+
+    // Directory listings live for one input line: long enough that `ls *.c; wc *.c` reads
+    // the directory once, short enough that the next line sees new files. Called once per
+    // line run, since a repeated line is the same String from the parse cache.
+    public void startLine() {
+        listings.clear();
+    }
+
+    // Each pass of a loop body lists directories afresh, as a new line would
+    public void startPass() {
+        listings.clear();
+    }
+
+    public Pipeline expand(Pipeline pipeline) {
+        List<CommandLine> stages = pipeline.getStages();
+        List<CommandLine> expanded = null;
+        for (int i = 0; i < stages.size(); i++) {
+            CommandLine stage = stages.get(i);
+            if (stage.needsExpansion()) {
+                if (expanded == null) {
+                    expanded = new ArrayList<>(stages);
+                }
+                expanded.set(i, expand(stage));
+            }
+        }
+        return expanded == null ? pipeline : pipeline.withStages(expanded);
+    }
+
+    // Throws IllegalArgumentException, with bash's message, for a bad substitution or an
+    // ambiguous redirect
+    public CommandLine expand(CommandLine command) {
+        if (!command.needsExpansion()) {
+            return command;
+        }
+        List<String> words = new ArrayList<>(command.size() + 4);
+        for (int i = 0; i < command.size(); i++) {
+            expandWord(command.chars(), command.quoting(), command.offset(i), command.length(i), words, true);
+        }
+        int[] spans = command.targetSpans();
+        String outputFile = command.getOutputFile();
+        String errorFile = command.getErrorFile();
+        if (spans != null && outputFile != null) {
+            outputFile = expandTarget(command, spans[0], spans[1]);
+        }
+        if (spans != null && errorFile != null) {
+            errorFile = expandTarget(command, spans[2], spans[3]);
+        }
+        StdinRedirect input = command.getInput();
+        if (input != null) {
+            input = expandInput(command, input);
+        }
+        return new CommandLine(words, outputFile, errorFile, command.isAppendOutput(), command.isAppendError(), input,
+                command.duplicate());
+    }
+
+    // A stdin file name is expanded like an output target. A here-string or here-document
+    // is expanded as one word, neither split nor globbed.
+    private StdinRedirect expandInput(CommandLine command, StdinRedirect input) {
+        int[] spans = command.targetSpans();
+        List<String> value = new ArrayList<>(1);
+        switch (input.kind()) {
+            case FILE:
+                return new StdinRedirect(StdinRedirect.Kind.FILE, expandTarget(command, spans[4], spans[5]));
+            case HERE_STRING:
+                expandWord(command.chars(), command.quoting(), spans[4], spans[5], value, false);
+                break;
+            default:
+                if (!input.needsExpansion()) {
+                    return input;
+                }
+                expandWord(input.chars(), input.quoting(), 0, input.chars().length, value, false);
+                break;
+        }
+        if (text.capacity() > RETAINED_CAPACITY) {
+            // A big body should not stay reachable from the session once its command has run
+            text.setLength(0);
+            text.trimToSize();
+            marks = new byte[64];
+        }
+        return new StdinRedirect(input.kind(), value.get(0));
+    }
+
+    // How many leading words are NAME=value assignments
+    public static int assignmentCount(CommandLine command) {
+        if (!command.needsExpansion()) {
+            return 0;
+        }
+        int count = 0;
+        while (count < command.size() && assignmentNameLength(command, count) > 0) {
+            count++;
+        }
+        return count;
+    }
+
+    public static String assignmentName(CommandLine command, int index) {
+        return new String(command.chars(), command.offset(index), assignmentNameLength(command, index));
+    }
+
+    // The value of an assignment word, expanded but neither split nor globbed
+    public String assignmentValue(CommandLine command, int index) {
+        int nameLength = assignmentNameLength(command, index);
+        List<String> value = new ArrayList<>(1);
+        expandWord(command.chars(), command.quoting(), command.offset(index) + nameLength + 1,
+                command.length(index) - nameLength - 1, value, false);
+        return value.isEmpty() ? "" : value.get(0);
+    }
+
+    private static int assignmentNameLength(CommandLine command, int index) {
+        char[] chars = command.chars();
+        byte[] quoting = command.quoting();
+        int offset = command.offset(index);
+        int length = command.length(index);
+        int n = 0;
+        while (n < length && quoting[offset + n] == LineParser.UNQUOTED && isNameChar(chars[offset + n], n == 0)) {
+            n++;
+        }
+        boolean assignment = n > 0 && n < length && chars[offset + n] == '=' && quoting[offset + n] == LineParser.UNQUOTED;
+        return assignment ? n : 0;
+    }
+
+    private String expandTarget(CommandLine command, int offset, int length) {
+        List<String> fields = new ArrayList<>(1);
+        expandWord(command.chars(), command.quoting(), offset, length, fields, true);
+        if (fields.size() != 1) {
+            throw new IllegalArgumentException(new String(command.chars(), offset, length) + ": ambiguous redirect");
+        }
+        return fields.get(0);
+    }
+
+    // Expand one word into zero or more fields
+    private void expandWord(char[] chars, byte[] quoting, int offset, int length, List<String> fields,
+                            boolean splitAndGlob) {
+        text.setLength(0);
+        boolean quoted = length == 0;
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            byte quote = quoting[i];
+            if (quote != LineParser.UNQUOTED) {
+                quoted = true;
+            }
+            if (c != LineParser.DOLLAR || quote == LineParser.LITERAL || i + 1 == end) {
+                boolean glob = quote == LineParser.UNQUOTED && (c == '*' || c == '?' || c == '[');
+                add(c, glob ? GLOB : 0);
+                continue;
+            }
+
+            // Expansion results are split and globbed only when unquoted
+            byte mark = quote == LineParser.UNQUOTED ? (byte) (GLOB | SPLIT) : 0;
+            char next = chars[i + 1];
+            if (next == '(') {
+                int close = LineParser.substitutionEnd(new String(chars, i + 2, end - i - 2), 0);
+                if (close >= 0) {
+                    addAll(substitute(new String(chars, i + 2, close)), mark);
+                    i += close + 2;
+                    continue;
+                }
+            } else if (next == '{') {
+                int close = i + 2;
+                while (close < end && chars[close] != '}') {
+                    close++;
+                }
+                String name = new String(chars, i + 2, Math.max(0, close - i - 2));
+                if (close == end || !(isName(name) || isNumber(name) || name.equals("?"))) {
+                    throw new IllegalArgumentException("${" + name + (close == end ? "" : "}") + ": bad substitution");
+                }
+                addAll(isNumber(name) ? positional(Integer.parseInt(name)) : variable(name), mark);
+                i = close;
+                continue;
+            } else if (next == '?') {
+                addAll(variable("?"), mark);
+                i++;
+                continue;
+            } else if (next == '$') {
+                addAll(Long.toString(ProcessHandle.current().pid()), mark);
+                i++;
+                continue;
+            } else if (next >= '1' && next <= '9') {
+                addAll(positional(next - '0'), mark);
+                i++;
+                continue;
+            } else if (next == '#') {
+                addAll(Integer.toString(shell.positional().size()), mark);
+                i++;
+                continue;
+            } else if (next == '@' || next == '*') {
+                // Both are the parameters joined by spaces; "$@" does not keep them apart
+                addAll(String.join(" ", shell.positional()), mark);
+                i++;
+                continue;
+            } else if (isNameChar(next, true)) {
+                int nameEnd = i + 2;
+                while (nameEnd < end && isNameChar(chars[nameEnd], false) && quoting[nameEnd] == quote) {
+                    nameEnd++;
+                }
+                addAll(variable(new String(chars, i + 1, nameEnd - i - 1)), mark);
+                i = nameEnd - 1;
+                continue;
+            }
+            add(c, (byte) 0);
+        }
+
+        if (!splitAndGlob) {
+            fields.add(text.toString());
+            return;
+        }
+        split(fields, quoted);
+    }
+
+    // Break the expanded word on IFS characters that came from unquoted expansions, then
+    // glob each field
+    private void split(List<String> fields, boolean quoted) {
+        String ifs = variable("IFS");
+        if (ifs == null) {
+            ifs = " \t\n";
+        }
+        int start = 0;
+        boolean any = false;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean boundary = i == text.length()
+                    || ((marks[i] & SPLIT) != 0 && ifs.indexOf(text.charAt(i)) >= 0);
+            if (!boundary) {
+                continue;
+            }
+            if (i > start) {
+                addField(fields, start, i);
+                any = true;
+            }
+            start = i + 1;
+        }
+        // A quoted empty word ("" or '') is still an argument; an unquoted empty one is not
+        if (!any && quoted) {
+            fields.add("");
+        }
+    }
+
+    private void addField(List<String> fields, int start, int end) {
+        boolean glob = false;
+        for (int i = start; i < end && !glob; i++) {
+            glob = isLive(start, end, i);
+        }
+        String field = text.substring(start, end);
+        if (!glob) {
+            fields.add(field);
+            return;
+        }
+        List<String> matches = glob(start, end);
+        if (matches.isEmpty()) {
+            // No match leaves the pattern as typed, as bash does by default
+            fields.add(field);
+        } else {
+            fields.addAll(matches);
+        }
+    }
+
+    // Match the field component by component: literal components are appended as they
+    // are, pattern components are matched against the (cached) directory listing
+    private List<String> glob(int start, int end) {
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(text.charAt(start) == '/' ? "/" : "");
+        int componentStart = text.charAt(start) == '/' ? start + 1 : start;
+
+        while (componentStart <= end && !prefixes.isEmpty()) {
+            int componentEnd = componentStart;
+            while (componentEnd < end && text.charAt(componentEnd) != '/') {
+                componentEnd++;
+            }
+            boolean last = componentEnd >= end;
+            String key = patternKey(componentStart, componentEnd);
+            List<String> next = new ArrayList<>();
+            if (key == null) {
+                String literal = text.substring(componentStart, componentEnd);
+                for (String prefix : prefixes) {
+                    String candidate = prefix + literal + (last ? "" : "/");
+                    // Intermediate directories are checked when listed; only the end needs a stat
+                    if (!last || Files.exists(resolve(candidate))) {
+                        next.add(candidate);
+                    }
+                }
+            } else {
+                Pattern pattern = patterns.computeIfAbsent(key, Expander::compile);
+                Matcher matcher = pattern.matcher("");
+                boolean dotfiles = text.charAt(componentStart) == '.';
+                for (String prefix : prefixes) {
+                    for (String name : listing(prefix)) {
+                        if ((dotfiles || name.charAt(0) != '.') && matcher.reset(name).matches()) {
+                            if (last || Files.isDirectory(resolve(prefix + name))) {
+                                next.add(prefix + name + (last ? "" : "/"));
+                            }
+                        }
+                    }
+                }
+            }
+            prefixes = next;
+            componentStart = componentEnd + 1;
+        }
+        Collections.sort(prefixes);
+        return prefixes;
+    }
+
+    // The component as an escaped glob string, or null when it has no live metacharacter;
+    // quoted metacharacters are escaped so they match themselves
+    private String patternKey(int start, int end) {
+        boolean live = false;
+        StringBuilder key = new StringBuilder(end - start + 4);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isLive(start, end, i)) {
+                live = true;
+            } else if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                key.append('\\');
+            }
+            key.append(c);
+        }
+        return live ? key.toString() : null;
+    }
+
+    // An unquoted *, ?, or [ that has a matching ]
+    private boolean isLive(int start, int end, int i) {
+        char c = text.charAt(i);
+        return (marks[i] & GLOB) != 0
+                && (c == '*' || c == '?' || (c == '[' && closingBracket(start, end, i) > 0));
+    }
+
+    private int closingBracket(int start, int end, int open) {
+        int i = open + 1;
+        if (i < end && (text.charAt(i) == '!' || text.charAt(i) == '^')) {
+            i++;
+        }
+        if (i < end && text.charAt(i) == ']') {
+            i++;
+        }
+        while (i < end && text.charAt(i) != ']') {
+            i++;
+        }
+        return i < end ? i : -1;
+    }
+
+    // Glob (with backslash escapes) to regex: * and ? never match '/', which components
+    // cannot contain anyway; [!...] and [^...] negate
+    static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() * 2);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\' && i + 1 < glob.length()) {
+                appendLiteral(regex, glob.charAt(++i));
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                int close = glob.indexOf(']', i + 2);
+                regex.append('[');
+                int j = i + 1;
+                if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+                    regex.append('^');
+                    j++;
+                    close = glob.indexOf(']', j + 1);
+                }
+                for (; j < close; j++) {
+                    char member = glob.charAt(j);
+                    if (member == '\\' || member == '[' || member == ']' || member == '&' || member == '^') {
+                        regex.append('\\');
+                    }
+                    regex.append(member);
+                }
+                regex.append(']');
+                i = close;
+            } else {
+                appendLiteral(regex, c);
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        // Escaping any ASCII non-alphanumeric is always safe in a regex
+        if (c < 128 && !Character.isLetterOrDigit(c)) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    private String[] listing(String prefix) {
+        String directory = resolve(prefix).toString();
+        String[] names = listings.get(directory);
+        if (names != null) {
+            return names;
+        }
+        List<String> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(directory))) {
+            for (Path entry : stream) {
+                entries.add(entry.getFileName().toString());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Unreadable or missing: nothing matches, exactly as in bash
+        }
+        names = entries.toArray(new String[0]);
+        listings.put(directory, names);
+        return names;
+    }
+
+    private Path resolve(String path) {
+        return Path.of(shell.resolvePath(path.isEmpty() ? "." : path));
+    }
+
+    private String variable(String name) {
+        if (name.equals("?")) {
+            return Integer.toString(shell.interpreter().status());
+        }
+        return shell.getVariable(name);
+    }
+
+    private String positional(int index) {
+        List<String> parameters = shell.positional();
+        return index >= 1 && index <= parameters.size() ? parameters.get(index - 1) : null;
+    }
+
+    // Run the text in a subshell and capture its stdout, minus trailing newlines
+    private String substitute(String command) {
+        CapturedOutput captured = new CapturedOutput(SUBSTITUTION_LIMIT);
+        PrintStream out = new PrintStream(captured, false, StandardCharsets.UTF_8);
+        try {
+            shell.subshell(command, out).run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            shell.err().println(e.getMessage());
+        }
+        out.flush();
+        String result = captured.toString(StandardCharsets.UTF_8);
+        int n = result.length();
+        while (n > 0 && result.charAt(n - 1) == '\n') {
+            n--;
+        }
+        return result.substring(0, n);
+    }
+
+    private void add(char c, byte mark) {
+        if (text.length() == marks.length) {
+            marks = Arrays.copyOf(marks, marks.length * 2);
+        }
+        marks[text.length()] = mark;
+        text.append(c);
+    }
+
+    private void addAll(String value, byte mark) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            add(value.charAt(i), mark);
+        }
+    }
+
+    private static boolean isName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!isNameChar(name.charAt(i), i == 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String name) {
+        if (name.isEmpty() || name.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c, boolean first) {
+        return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (!first && c >= '0' && c <= '9');
+    }
+}
+
+// A byte sink that keeps at most `limit` bytes and silently discards the rest, so a
+// runaway substitution cannot exhaust the heap but its writer never blocks
+class CapturedOutput extends ByteArrayOutputStream {
+    private final int limit;
+
+    public CapturedOutput(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (count < limit) {
+            super.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        super.write(b, off, Math.min(len, Math.max(0, limit - count)));
+    }
+}
@@ -0,0 +1,520 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Persistent command history shared by every shell of a user. The file is append-only,
+// one UTF-8 entry per line, and is read in place through a read-only memory map: the heap
+// holds only an offset per entry and, once a search needs it, a trigram index. Entries
+// appended by other shells are picked up incrementally when the file grows.
+//
+// Appends and compaction take an exclusive lock on a sibling ".lock" file, which is never
+// replaced, so a shell that opened the history before a compaction cannot append to the
+// old, unlinked file.
+//
+// The map is made of fixed-size chunks. A full chunk stays mapped as it is, so when the
+// file grows only its last chunk is mapped again, however long the history is.
+class HistoryStore {
+    private static final int DEFAULT_MAX_ENTRIES = 2_000_000;
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    // Like bash's, the history is readable by its owner only
+    private static final FileAttribute<?> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+    // In-JVM guard: FileLock is per process, and daemon sessions share one process
+    private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final Path lockFile;
+    private final int maxEntries;
+
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private Object fileKey;
+    private long mappedSize;
+    private int indexedBytes;
+    // starts[i] is where entry i begins; starts[count] is the end of the last complete entry
+    private int[] starts = new int[1024];
+    private int count;
+    // Entries before this one are hidden from this session by `history -c`; the file, which
+    // other sessions share, keeps them. Public indexes count from here.
+    private int hidden;
+    private TrigramIndex trigrams;
+
+    public HistoryStore(Path file, int maxEntries) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.maxEntries = maxEntries;
+    }
+
+    // HISTFILE, or ~/.shell_history; HISTFILESIZE bounds how many entries are kept
+    public static HistoryStore open(Map<String, String> environment) {
+        String path = environment.get("HISTFILE");
+        if (path == null || path.isEmpty()) {
+            String home = environment.get("HOME");
+            if (home == null) {
+                return null;
+            }
+            path = home + File.separator + ".shell_history";
+        }
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+        try {
+            String size = environment.get("HISTFILESIZE");
+            if (size != null) {
+                maxEntries = Math.max(1, Integer.parseInt(size));
+            }
+        } catch (NumberFormatException ignored) {}
+        return new HistoryStore(Path.of(path), maxEntries);
+    }
+
+    public synchronized void append(String entry) throws IOException {
+        byte[] bytes = (entry.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        withLock(() -> {
+            try (FileChannel channel = FileChannel.open(file, Set.of(StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND), OWNER_ONLY)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            refresh();
+            // Hysteresis: compact only once a quarter over the bound
+            if (count > maxEntries + maxEntries / 4 || indexedBytes > Integer.MAX_VALUE / 2) {
+                compact();
+            }
+        });
+    }
+
+    public synchronized int size() throws IOException {
+        refresh();
+        return count - hidden;
+    }
+
+    // Entry by number, 0-based, as of the last size() or search. It does not look at the
+    // file again: listing the whole history costs no syscall per entry, and an older
+    // mapping stays readable even after another shell swaps in a compacted file.
+    public synchronized String get(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return entry(hidden + index);
+    }
+
+    // The newest entry before `before` that contains the query, or -1
+    public synchronized int searchBackward(String query, int before) throws IOException {
+        refresh();
+        byte[] needle = query.getBytes(StandardCharsets.UTF_8);
+        before = hidden + Math.min(before, count - hidden);
+        if (needle.length < 3) {
+            for (int i = before - 1; i >= hidden; i--) {
+                if (contains(i, needle)) {
+                    return i - hidden;
+                }
+            }
+            return -1;
+        }
+
+        buildTrigramIndex();
+        // Walk the rarest trigram's postings, newest first, and verify each candidate
+        IntList rarest = null;
+        for (int i = 0; i + 2 < needle.length; i++) {
+            IntList postings = trigrams.get(trigram(needle, i));
+            if (postings == null) {
+                return -1;
+            }
+            if (rarest == null || postings.size < rarest.size) {
+                rarest = postings;
+            }
+        }
+        for (int p = rarest.size - 1; p >= 0 && rarest.values[p] >= hidden; p--) {
+            int candidate = rarest.values[p];
+            if (candidate < before && contains(candidate, needle)) {
+                return candidate - hidden;
+            }
+        }
+        return -1;
+    }
+
+    // Build the search index off the critical path so the first Ctrl-R does not pay for it
+    public void startIndexing() {
+        Thread.ofVirtual().name("history-index").start(() -> {
+            try {
+                synchronized (this) {
+                    refresh();
+                    buildTrigramIndex();
+                }
+            } catch (IOException ignored) {}
+        });
+    }
+
+    // history -c: empties this session's view only, as bash's clears its in-memory list
+    public synchronized void clear() throws IOException {
+        refresh();
+        hidden = count;
+    }
+
+    // Bash-style history expansion: !!, !n, !-n and !prefix outside single quotes. As in
+    // bash a `!` at the end, or before whitespace, `=` or `"`, is left alone, and so is one
+    // with no prefix after it. Returns the line unchanged when there is nothing to expand.
+    public synchronized String expand(String line) throws IOException {
+        if (line.indexOf('!') < 0) {
+            return line;
+        }
+        refresh();
+        StringBuilder result = new StringBuilder(line.length());
+        boolean inSingleQuotes = false;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == '\'') {
+                inSingleQuotes = !inSingleQuotes;
+            }
+            if (c != '!' || inSingleQuotes || i + 1 >= line.length()
+                    || Character.isWhitespace(line.charAt(i + 1)) || "=\"".indexOf(line.charAt(i + 1)) >= 0) {
+                result.append(c);
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            String event;
+            if (line.charAt(end) == '!') {
+                end++;
+                event = count > hidden ? entry(count - 1) : null;
+            } else if (Character.isDigit(line.charAt(end)) || line.charAt(end) == '-') {
+                end++;
+                while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                    end++;
+                }
+                event = null;
+                try {
+                    int n = Integer.parseInt(line.substring(i + 1, end));
+                    int index = n < 0 ? count + n : hidden + n - 1;
+                    event = index >= hidden && index < count ? entry(index) : null;
+                } catch (NumberFormatException ignored) {}
+            } else {
+                while (end < line.length() && !Character.isWhitespace(line.charAt(end))
+                        && ";&|<>()\"'".indexOf(line.charAt(end)) < 0) {
+                    end++;
+                }
+                String prefix = line.substring(i + 1, end);
+                if (prefix.isEmpty()) {
+                    result.append(c);
+                    i++;
+                    continue;
+                }
+                event = null;
+                for (int e = count - 1; e >= hidden; e--) {
+                    String candidate = entry(e);
+                    if (candidate.startsWith(prefix)) {
+                        event = candidate;
+                        break;
+                    }
+                }
+            }
+            if (event == null) {
+                throw new IllegalArgumentException(line.substring(i, end) + ": event not found");
+            }
+            result.append(event);
+            i = end;
+        }
+        return result.toString();
+    }
+
+    private interface LockedAction {
+        void run() throws IOException;
+    }
+
+    private void withLock(LockedAction action) throws IOException {
+        Object jvmLock = JVM_LOCKS.computeIfAbsent(lockFile.toAbsolutePath(), p -> new Object());
+        synchronized (jvmLock) {
+            try (FileChannel channel = FileChannel.open(lockFile,
+                    Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), OWNER_ONLY)) {
+                // Released when the channel closes
+                channel.lock();
+                action.run();
+            }
+        }
+    }
+
+    // Keep the newest maxEntries entries: write them to a temporary file and swap it in
+    private void compact() throws IOException {
+        int keepFrom = Math.max(0, count - maxEntries);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), OWNER_ONLY)) {
+            for (int at = starts[keepFrom]; at < indexedBytes; ) {
+                int offset = at & (CHUNK_SIZE - 1);
+                int length = Math.min(indexedBytes - at, CHUNK_SIZE - offset);
+                ByteBuffer tail = chunks[at >>> CHUNK_SHIFT].duplicate();
+                tail.position(offset).limit(offset + length);
+                while (tail.hasRemaining()) {
+                    out.write(tail);
+                }
+                at += length;
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        refresh();
+    }
+
+    // Bring the index up to date with the file, scanning only bytes not seen before
+    private void refresh() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            reset(null);
+            return;
+        }
+        long size = attributes.size();
+        if (!Objects.equals(attributes.fileKey(), fileKey) || size < mappedSize) {
+            // Replaced by a compaction or truncated: index from scratch. A compaction drops
+            // the oldest entries, so what `history -c` hid is all but as many of the newest
+            // as were visible.
+            int visible = count - hidden;
+            boolean hiding = hidden > 0;
+            reset(attributes.fileKey());
+            index(size);
+            if (hiding) {
+                hidden = Math.max(0, count - visible);
+            }
+            return;
+        }
+        index(size);
+    }
+
+    // Map and index the file up to size, scanning only bytes not seen before
+    private void index(long size) throws IOException {
+        if (size == mappedSize) {
+            return;
+        }
+
+        // The last chunk mapped may have been partial; it and any new ones are mapped now
+        int first = (int) (mappedSize >>> CHUNK_SHIFT);
+        int needed = (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        if (needed > chunks.length) {
+            chunks = Arrays.copyOf(chunks, needed);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int k = first; k < needed; k++) {
+                long position = (long) k << CHUNK_SHIFT;
+                chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            }
+        }
+        mappedSize = size;
+
+        int limit = (int) size;
+        int start = indexedBytes;
+        for (int i = indexedBytes; i < limit; i++) {
+            if (byteAt(i) == '\n') {
+                addEntry(start, i + 1);
+                start = i + 1;
+            }
+        }
+        // A trailing partial line is another shell mid-append; it is indexed next time
+    }
+
+    private void reset(Object key) {
+        fileKey = key;
+        mappedSize = 0;
+        indexedBytes = 0;
+        chunks = new MappedByteBuffer[0];
+        count = 0;
+        hidden = 0;
+        starts[0] = 0;
+        trigrams = null;
+    }
+
+    private void addEntry(int start, int next) {
+        if (count + 1 >= starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[count] = start;
+        starts[count + 1] = next;
+        count++;
+        indexedBytes = next;
+        if (trigrams != null) {
+            indexTrigrams(count - 1);
+        }
+    }
+
+    private String entry(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        int start = starts[index];
+        byte[] bytes = new byte[starts[index + 1] - 1 - start];
+        for (int done = 0; done < bytes.length; ) {
+            int offset = (start + done) & (CHUNK_SIZE - 1);
+            int length = Math.min(bytes.length - done, CHUNK_SIZE - offset);
+            chunks[(start + done) >>> CHUNK_SHIFT].get(offset, bytes, done, length);
+            done += length;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte byteAt(int position) {
+        return chunks[position >>> CHUNK_SHIFT].get(position & (CHUNK_SIZE - 1));
+    }
+
+    // Byte-level substring match; valid for UTF-8 since no character's encoding is a
+    // substring of another's
+    private boolean contains(int index, byte[] needle) {
+        int start = starts[index];
+        int end = starts[index + 1] - 1;
+        outer:
+        for (int i = start; i + needle.length <= end; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (byteAt(i + j) != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void buildTrigramIndex() {
+        if (trigrams == null) {
+            trigrams = new TrigramIndex();
+            for (int i = 0; i < count; i++) {
+                indexTrigrams(i);
+            }
+        }
+    }
+
+    private void indexTrigrams(int index) {
+        int start = starts[index];
+        int end = starts[index + 1] - 1;
+        if (end - start < 3) {
+            return;
+        }
+        // Rolling 24-bit key: one byte in, one byte out
+        int key = ((byteAt(start) & 0xff) << 8) | (byteAt(start + 1) & 0xff);
+        for (int i = start + 2; i < end; i++) {
+            key = ((key << 8) | (byteAt(i) & 0xff)) & 0xffffff;
+            IntList postings = trigrams.postings(key);
+            // Entries are indexed in order, so a repeat within one entry is the last posting
+            if (postings.size == 0 || postings.values[postings.size - 1] != index) {
+                postings.add(index);
+            }
+        }
+    }
+
+    private static int trigram(byte[] bytes, int i) {
+        return ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+    }
+
+    // Trigram to postings, open addressing on primitive keys: indexing millions of entries
+    // must not box a key per byte
+    private static class TrigramIndex {
+        private int[] keys = new int[1 << 12];
+        private IntList[] lists = new IntList[1 << 12];
+        private int size;
+
+        IntList get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; lists[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return lists[slot];
+                }
+            }
+            return null;
+        }
+
+        IntList postings(int key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            for (; lists[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return lists[slot];
+                }
+            }
+            if (size * 2 >= keys.length) {
+                grow();
+                return postings(key);
+            }
+            keys[slot] = key;
+            size++;
+            return lists[slot] = new IntList();
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            IntList[] oldLists = lists;
+            keys = new int[oldKeys.length * 2];
+            lists = new IntList[oldLists.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldLists[i] != null) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (lists[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    lists[slot] = oldLists[i];
+                }
+            }
+        }
+
+        private static int mix(int key) {
+            return (key * 0x9E3779B9) >>> 7;
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
+
+class HistoryBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.register("history", HistoryBuiltins::history);
+    }
+
+    // history [N] lists the last N entries (all by default); history -c clears this
+    // session's list
+    static int history(CommandLine command, IoContext io) throws IOException {
+        HistoryStore store = io.shell().history();
+        if (store == null) {
+            return 0;
+        }
+        if (command.size() > 1 && command.tokenEquals(1, "-c")) {
+            store.clear();
+            return 0;
+        }
+
+        int size = store.size();
+        int from = 0;
+        if (command.size() > 1) {
+            try {
+                from = Math.max(0, size - Integer.parseInt(command.tokenString(1)));
+            } catch (NumberFormatException e) {
+                io.err().println("history: " + command.tokenString(1) + ": numeric argument required");
+                return 1;
+            }
+        }
+        StringBuilder row = new StringBuilder();
+        for (int i = from; i < size; i++) {
+            row.setLength(0);
+            row.append(String.format("%5d", i + 1)).append("  ").append(store.get(i));
+            io.out().println(row);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.*;
+
+// Runs the trees ScriptParser builds. Simple commands go to Shell.execute; everything
+// else is a walk over the tree, so a loop body is parsed once however many times it runs.
+// break, continue and return leave a count behind that unwinds the walk up to the loop or
+// function they apply to, without exceptions.
+class Interpreter {
+    // bash has no limit by default and eventually crashes; this fails the call instead
+    static final int MAX_FUNCTION_DEPTH = 1000;
+
+    private final Shell shell;
+    private final Map<String, Node> functions = new HashMap<>();
+    // Status of the last command run
+    private int status;
+    private int loopDepth;
+    private int functionDepth;
+    // Loops still to leave for break, and for continue (the last of them continues)
+    private int breaking;
+    private int continuing;
+    private boolean returning;
+    // Above zero while a status is being tested, where set -e does not apply: if and while
+    // conditions, and all but the last command of an && or || list
+    private int testing;
+
+    public Interpreter(Shell shell) {
+        this.shell = shell;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    // A subshell starts out with its parent's functions and $?
+    public void inherit(Interpreter parent) {
+        functions.putAll(parent.functions);
+        status = parent.status;
+    }
+
+    // A pipeline stage's copy is still inside its parent's loops and functions, so break
+    // and return there end the stage quietly
+    public void inheritDepth(Interpreter parent) {
+        loopDepth = parent.loopDepth;
+        functionDepth = parent.functionDepth;
+    }
+
+    public Node function(String name) {
+        return functions.isEmpty() ? null : functions.get(name);
+    }
+
+    // unset -f
+    public void removeFunction(String name) {
+        functions.remove(name);
+    }
+
+    public int run(Node node) throws Exception {
+        status = switch (node) {
+            case Node.Simple simple -> simple(simple.pipeline());
+            case Node.Sequence sequence -> sequence(sequence.nodes());
+            case Node.AndOr andOr -> andOr(andOr);
+            case Node.If branch -> branch(branch);
+            case Node.While loop -> loop(loop);
+            case Node.For loop -> loop(loop);
+            case Node.Group group -> run(group.body());
+            case Node.FunctionDefinition definition -> {
+                functions.put(definition.name(), definition.body());
+                yield 0;
+            }
+        };
+        return status;
+    }
+
+    // Run a function with its arguments as the positional parameters
+    public int call(String name, Node body, List<String> arguments) throws Exception {
+        if (functionDepth == MAX_FUNCTION_DEPTH) {
+            shell.err().println(name + ": maximum function nesting level exceeded (" + MAX_FUNCTION_DEPTH + ")");
+            return 1;
+        }
+        List<String> caller = shell.positional();
+        int callerLoops = loopDepth;
+        shell.setPositional(arguments);
+        functionDepth++;
+        loopDepth = 0;
+        try {
+            int result = run(body);
+            if (returning) {
+                returning = false;
+                result = status;
+            }
+            return result;
+        } finally {
+            functionDepth--;
+            loopDepth = callerLoops;
+            shell.setPositional(caller);
+        }
+    }
+
+    private int simple(Pipeline pipeline) throws Exception {
+        int result = shell.execute(pipeline);
+        if (result != 0 && testing == 0 && shell.errexit() && !shell.exitRequested()) {
+            shell.requestExit(result);
+        }
+        return result;
+    }
+
+    // An empty list, as left by a syntax error, leaves $? alone
+    private int sequence(List<Node> nodes) throws Exception {
+        int result = status;
+        for (Node node : nodes) {
+            result = run(node);
+            if (unwinding()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private int andOr(Node.AndOr andOr) throws Exception {
+        int result = test(andOr.left());
+        if (!unwinding() && (result == 0) == andOr.and()) {
+            result = run(andOr.right());
+        }
+        return result;
+    }
+
+    private int branch(Node.If branch) throws Exception {
+        for (int i = 0; i < branch.conditions().size(); i++) {
+            int condition = test(branch.conditions().get(i));
+            if (unwinding()) {
+                return condition;
+            }
+            if (condition == 0) {
+                return run(branch.bodies().get(i));
+            }
+        }
+        return branch.otherwise() != null ? run(branch.otherwise()) : 0;
+    }
+
+    private int loop(Node.While loop) throws Exception {
+        int result = 0;
+        loopDepth++;
+        try {
+            while (true) {
+                shell.startPass();
+                int condition = test(loop.condition());
+                if (unwinding() || (condition == 0) == loop.until()) {
+                    break;
+                }
+                result = run(loop.body());
+                if (leaveLoop()) {
+                    break;
+                }
+            }
+        } finally {
+            loopDepth--;
+        }
+        return result;
+    }
+
+    private int loop(Node.For loop) throws Exception {
+        // The words are expanded once, when the loop starts, as in sh
+        CommandLine words = shell.expandWords(loop.words());
+        if (words == null) {
+            return 1;
+        }
+        int result = 0;
+        loopDepth++;
+        try {
+            for (int i = 0; i < words.size(); i++) {
+                shell.startPass();
+                shell.setVariable(loop.name(), words.tokenString(i));
+                result = run(loop.body());
+                if (leaveLoop()) {
+                    break;
+                }
+            }
+        } finally {
+            loopDepth--;
+        }
+        return result;
+    }
+
+    private int test(Node condition) throws Exception {
+        testing++;
+        try {
+            return run(condition);
+        } finally {
+            testing--;
+        }
+    }
+
+    // After a loop body: true when this loop is done, consuming its share of break/continue
+    private boolean leaveLoop() {
+        if (breaking > 0) {
+            breaking--;
+            return true;
+        }
+        if (continuing > 0) {
+            // continue N leaves N-1 loops and goes on with the one after them
+            return --continuing > 0;
+        }
+        return returning || shell.exitRequested();
+    }
+
+    private boolean unwinding() {
+        return breaking > 0 || continuing > 0 || returning || shell.exitRequested();
+    }
+
+    // break [N] and continue [N]; N beyond the loops there are means all of them
+    int breakLoops(String name, int count, boolean isContinue, IoContext io) throws IOException {
+        if (loopDepth == 0) {
+            io.err().println(name + ": only meaningful in a `for', `while', or `until' loop");
+            return 0;
+        }
+        if (count < 1) {
+            io.err().println(name + ": " + count + ": loop count out of range");
+            return 1;
+        }
+        int loops = Math.min(count, loopDepth);
+        if (isContinue) {
+            continuing = loops;
+        } else {
+            breaking = loops;
+        }
+        return 0;
+    }
+
+    int returnFromFunction(int result, IoContext io) throws IOException {
+        if (functionDepth == 0) {
+            io.err().println("return: can only `return' from a function or sourced script");
+            return 1;
+        }
+        returning = true;
+        return result;
+    }
+}
+
+class ControlBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.registerShellBuiltin("break", (command, io) -> loopControl(command, io, false));
+        builtins.registerShellBuiltin("continue", (command, io) -> loopControl(command, io, true));
+        builtins.registerShellBuiltin("return", ControlBuiltins::returnBuiltin);
+    }
+
+    static int loopControl(CommandLine command, IoContext io, boolean isContinue) throws IOException {
+        String name = isContinue ? "continue" : "break";
+        int count = 1;
+        if (command.size() > 1) {
+            try {
+                count = Integer.parseInt(command.tokenString(1));
+            } catch (NumberFormatException e) {
+                io.err().println(name + ": " + command.tokenString(1) + ": numeric argument required");
+                count = Integer.MAX_VALUE;
+            }
+        }
+        return io.shell().interpreter().breakLoops(name, count, isContinue, io);
+    }
+
+    // return [N]: N defaults to the status of the last command
+    static int returnBuiltin(CommandLine command, IoContext io) throws IOException {
+        Interpreter interpreter = io.shell().interpreter();
+        int result = interpreter.status();
+        if (command.size() > 1) {
+            try {
+                result = Integer.parseInt(command.tokenString(1)) & 0xff;
+            } catch (NumberFormatException e) {
+                io.err().println("return: " + command.tokenString(1) + ": numeric argument required");
+                result = 2;
+            }
+        }
+        return interpreter.returnFromFunction(result, io);
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.*;
+import java.util.*;
+
+// One background pipeline
+class Job {
+    private final int id;
+    private final String command;
+    private final PipelineExecutor.Execution execution;
+    private volatile int status = -1;
+
+    public Job(int id, String command, PipelineExecutor.Execution execution) {
+        this.id = id;
+        this.command = command;
+        this.execution = execution;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String command() {
+        return command;
+    }
+
+    // The pid bash would print: the last process in the pipeline, or -1 for in-process jobs
+    public long pid() {
+        List<Process> processes = execution.processes;
+        return processes.isEmpty() ? -1 : processes.get(processes.size() - 1).pid();
+    }
+
+    public List<Process> processes() {
+        return execution.processes;
+    }
+
+    public boolean isDone() {
+        return status >= 0;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    // Block until every stage has finished, returning the job's status
+    public int await() {
+        try {
+            return execution.completion.join();
+        } catch (RuntimeException e) {
+            return 1;
+        }
+    }
+
+    void finish(int status) {
+        this.status = status;
+    }
+}
+
+// Background jobs of one session. Completion is signalled through Process.onExit(), so
+// the table adds no thread per job, and hundreds of children cost nothing while they run.
+// Finished jobs stay listed until they have been reported once.
+class JobTable {
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    public synchronized Job add(String command, PipelineExecutor.Execution execution) {
+        int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        Job job = new Job(id, command, execution);
+        jobs.put(id, job);
+        execution.completion.whenComplete((status, error) -> job.finish(error == null ? status : 1));
+        return job;
+    }
+
+    public synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public synchronized void remove(Job job) {
+        jobs.remove(job.id(), job);
+    }
+
+    // "%n", "%+"/"%%" (current), "%-" (previous), or the pid of one of a job's processes
+    public synchronized Job resolve(String spec) {
+        if (spec.equals("%+") || spec.equals("%%") || spec.equals("%")) {
+            return jobs.isEmpty() ? null : jobs.lastEntry().getValue();
+        }
+        if (spec.equals("%-")) {
+            Map.Entry<Integer, Job> last = jobs.lastEntry();
+            Map.Entry<Integer, Job> previous = last == null ? null : jobs.lowerEntry(last.getKey());
+            return previous == null ? null : previous.getValue();
+        }
+        try {
+            if (spec.startsWith("%")) {
+                return jobs.get(Integer.parseInt(spec.substring(1)));
+            }
+            long pid = Long.parseLong(spec);
+            for (Job job : jobs.values()) {
+                for (Process process : job.processes()) {
+                    if (process.pid() == pid) {
+                        return job;
+                    }
+                }
+            }
+        } catch (NumberFormatException ignored) {}
+        return null;
+    }
+
+    // Print and forget jobs that finished since the last prompt
+    public synchronized void reportFinished(PrintStream out) {
+        Iterator<Job> it = jobs.values().iterator();
+        List<String> lines = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.isDone()) {
+                lines.add(describe(job));
+            }
+        }
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    // The line `jobs` prints, e.g. "[1]+  Running                 sleep 10 &"
+    public synchronized String describe(Job job) {
+        String state;
+        String command = job.command();
+        if (!job.isDone()) {
+            state = "Running";
+            command = command + " &";
+        } else if (job.status() == 0) {
+            state = "Done";
+        } else {
+            state = "Exit " + job.status();
+        }
+        return String.format("[%d]%c  %-24s%s", job.id(), marker(job), state, command);
+    }
+
+    private char marker(Job job) {
+        Map.Entry<Integer, Job> last = jobs.lastEntry();
+        if (last != null && last.getValue() == job) {
+            return '+';
+        }
+        Map.Entry<Integer, Job> previous = last == null ? null : jobs.lowerEntry(last.getKey());
+        return previous != null && previous.getValue() == job ? '-' : ' ';
+    }
+}
+
+// jobs, wait, fg and kill
+class JobBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.register("jobs", JobBuiltins::jobs);
+        builtins.register("kill", JobBuiltins::kill);
+        builtins.registerShellBuiltin("wait", JobBuiltins::await);
+        builtins.registerShellBuiltin("fg", JobBuiltins::fg);
+    }
+
+    static int jobs(CommandLine command, IoContext io) throws IOException {
+        JobTable table = io.shell().jobs();
+        for (Job job : table.list()) {
+            io.out().println(table.describe(job));
+            if (job.isDone()) {
+                table.remove(job);
+            }
+        }
+        return 0;
+    }
+
+    static int await(CommandLine command, IoContext io) throws IOException {
+        JobTable table = io.shell().jobs();
+        // Without operands it waits for every job and, as POSIX says, returns 0
+        if (command.size() == 1) {
+            for (Job job : table.list()) {
+                job.await();
+                table.remove(job);
+            }
+            return 0;
+        }
+        int status = 0;
+        for (int i = 1; i < command.size(); i++) {
+            String spec = command.tokenString(i);
+            Job job = table.resolve(spec);
+            if (job == null) {
+                io.err().println("wait: " + (spec.startsWith("%") ? spec + ": no such job" : "pid " + spec + " is not a child of this shell"));
+                status = 127;
+                continue;
+            }
+            status = job.await();
+            table.remove(job);
+        }
+        return status;
+    }
+
+    // There is no terminal process group to hand over, so fg waits for the job in the foreground
+    static int fg(CommandLine command, IoContext io) throws IOException {
+        JobTable table = io.shell().jobs();
+        String spec = command.size() > 1 ? command.tokenString(1) : "%+";
+        Job job = table.resolve(spec);
+        if (job == null) {
+            io.err().println("fg: " + (command.size() > 1 ? spec : "current") + ": no such job");
+            return 1;
+        }
+        io.out().println(job.command());
+        io.out().flush();
+        int status = job.await();
+        table.remove(job);
+        return status;
+    }
+
+    static int kill(CommandLine command, IoContext io) throws IOException {
+        String signal = "TERM";
+        int first = 1;
+        if (command.size() > 2 && command.tokenEquals(1, "-s")) {
+            signal = command.tokenString(2);
+            first = 3;
+        } else if (command.size() > 1 && command.tokenString(1).startsWith("-")) {
+            signal = command.tokenString(1).substring(1);
+            first = 2;
+        }
+        signal = signal.toUpperCase(Locale.ROOT);
+        if (signal.startsWith("SIG")) {
+            signal = signal.substring(3);
+        }
+        if (first >= command.size()) {
+            io.err().println("kill: usage: kill [-s sigspec | -sigspec] pid | jobspec ...");
+            return 2;
+        }
+
+        int status = 0;
+        for (int i = first; i < command.size(); i++) {
+            String spec = command.tokenString(i);
+            List<ProcessHandle> targets = new ArrayList<>();
+            Job job = io.shell().jobs().resolve(spec);
+            if (job != null) {
+                for (Process process : job.processes()) {
+                    targets.add(process.toHandle());
+                }
+            } else if (!spec.startsWith("%")) {
+                try {
+                    ProcessHandle.of(Long.parseLong(spec)).ifPresent(targets::add);
+                } catch (NumberFormatException ignored) {}
+            }
+            if (targets.isEmpty()) {
+                io.err().println("kill: " + spec + ": " + (spec.startsWith("%") ? "no such job" : "no such process"));
+                status = 1;
+                continue;
+            }
+            for (ProcessHandle target : targets) {
+                if (!signal(target, signal)) {
+                    io.err().println("kill: " + signal + ": invalid signal specification");
+                    return 1;
+                }
+            }
+        }
+        return status;
+    }
+
+    // TERM and KILL go through the JDK; any other signal needs the kill(1) binary
+    private static boolean signal(ProcessHandle target, String signal) {
+        switch (signal) {
+            case "TERM", "15" -> {
+                target.destroy();
+                return true;
+            }
+            case "KILL", "9" -> {
+                target.destroyForcibly();
+                return true;
+            }
+            default -> {
+                try {
+                    Process kill = new ProcessBuilder("kill", "-" + signal, Long.toString(target.pid()))
+                            .redirectErrorStream(true)
+                            .start();
+                    kill.getInputStream().transferTo(OutputStream.nullOutputStream());
+                    return kill.waitFor() == 0;
+                } catch (IOException e) {
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+// Turns raw terminal bytes into keys, one byte at a time. It keeps its own state, so
+// escape sequences and multi-byte UTF-8 characters may arrive split across reads, and
+// it never touches the terminal itself: any byte source can drive it.
+//
+// feed() returns a Unicode code point (>= 0) for text, one of the negative key
+// constants below, or NONE while a sequence is still incomplete.
+class KeyDecoder {
+    public static final int NONE = -1;
+    public static final int ENTER = -2;
+    public static final int TAB = -3;
+    public static final int BACKSPACE = -4;
+    public static final int DELETE = -5;
+    public static final int LEFT = -6;
+    public static final int RIGHT = -7;
+    public static final int UP = -8;
+    public static final int DOWN = -9;
+    public static final int HOME = -10;
+    public static final int END = -11;
+    public static final int INTERRUPT = -12;
+    public static final int EOF = -13;
+    public static final int KILL_LINE = -14;
+    public static final int KILL_TO_END = -15;
+    public static final int DELETE_WORD = -16;
+    public static final int CLEAR_SCREEN = -17;
+    public static final int SEARCH = -18;
+    public static final int UNKNOWN = -19;
+
+    private static final byte ESC = 0x1b;
+
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int SS3 = 3;
+    private static final int UTF8 = 4;
+
+    private int state = GROUND;
+    private int parameter;
+    private int codePoint;
+    private int pendingBytes;
+
+    public int feed(byte b) {
+        int u = b & 0xff;
+        switch (state) {
+            case ESCAPE:
+                if (u == '[') {
+                    state = CSI;
+                    parameter = 0;
+                    return NONE;
+                }
+                if (u == 'O') {
+                    state = SS3;
+                    return NONE;
+                }
+                state = GROUND;
+                return UNKNOWN;
+            case CSI:
+                if (u >= '0' && u <= '9') {
+                    parameter = parameter * 10 + (u - '0');
+                    return NONE;
+                }
+                if (u == ';') {
+                    // Modifier parameters (e.g. Ctrl+arrow) are accepted but ignored
+                    parameter = 0;
+                    return NONE;
+                }
+                state = GROUND;
+                return csi(u);
+            case SS3:
+                state = GROUND;
+                return sequenceEnd(u);
+            case UTF8:
+                if ((u & 0xc0) != 0x80) {
+                    state = GROUND;
+                    return UNKNOWN;
+                }
+                codePoint = (codePoint << 6) | (u & 0x3f);
+                if (--pendingBytes == 0) {
+                    state = GROUND;
+                    return codePoint;
+                }
+                return NONE;
+            default:
+                return ground(u);
+        }
+    }
+
+    public void reset() {
+        state = GROUND;
+    }
+
+    private int ground(int u) {
+        switch (u) {
+            case '\r', '\n':
+                return ENTER;
+            case '\t':
+                return TAB;
+            case 0x7f, 0x08:
+                return BACKSPACE;
+            case 0x01:
+                return HOME;
+            case 0x05:
+                return END;
+            case 0x02:
+                return LEFT;
+            case 0x06:
+                return RIGHT;
+            case 0x03:
+                return INTERRUPT;
+            case 0x04:
+                return EOF;
+            case 0x0b:
+                return KILL_TO_END;
+            case 0x0c:
+                return CLEAR_SCREEN;
+            case 0x0e:
+                return DOWN;
+            case 0x10:
+                return UP;
+            case 0x12:
+                return SEARCH;
+            case 0x15:
+                return KILL_LINE;
+            case 0x17:
+                return DELETE_WORD;
+            case ESC:
+                state = ESCAPE;
+                return NONE;
+            default:
+                break;
+        }
+        if (u < 0x20) {
+            return UNKNOWN;
+        }
+        if (u < 0x80) {
+            return u;
+        }
+        // Lead byte of a multi-byte UTF-8 sequence
+        if ((u & 0xe0) == 0xc0) {
+            return startUtf8(u & 0x1f, 1);
+        }
+        if ((u & 0xf0) == 0xe0) {
+            return startUtf8(u & 0x0f, 2);
+        }
+        if ((u & 0xf8) == 0xf0) {
+            return startUtf8(u & 0x07, 3);
+        }
+        return UNKNOWN;
+    }
+
+    private int startUtf8(int bits, int continuation) {
+        codePoint = bits;
+        pendingBytes = continuation;
+        state = UTF8;
+        return NONE;
+    }
+
+    private int csi(int u) {
+        if (u == '~') {
+            switch (parameter) {
+                case 1, 7:
+                    return HOME;
+                case 3:
+                    return DELETE;
+                case 4, 8:
+                    return END;
+                default:
+                    return UNKNOWN;
+            }
+        }
+        return sequenceEnd(u);
+    }
+
+    private static int sequenceEnd(int u) {
+        switch (u) {
+            case 'A':
+                return UP;
+            case 'B':
+                return DOWN;
+            case 'C':
+                return RIGHT;
+            case 'D':
+                return LEFT;
+            case 'H':
+                return HOME;
+            case 'F':
+                return END;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
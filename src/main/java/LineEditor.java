@@ -0,0 +1,430 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The controlling terminal: switches it between raw and cooked mode with stty, and reads
+// keystrokes straight from stdin's FileChannel into one reused buffer.
+class Terminal {
+    private final FileChannel input = new FileInputStream(FileDescriptor.in).getChannel();
+    private final ByteBuffer buffer = ByteBuffer.allocate(256).flip();
+    private String savedMode;
+    private boolean raw;
+
+    public void enterRawMode() throws IOException {
+        if (raw) {
+            return;
+        }
+        if (savedMode == null) {
+            savedMode = stty("-g").trim();
+            // Never leave the user's terminal raw, however the JVM goes down
+            Runtime.getRuntime().addShutdownHook(new Thread(this::restore));
+        }
+        stty("raw", "-echo");
+        raw = true;
+    }
+
+    // Back to the saved cooked mode, which is what child processes expect
+    public synchronized void restore() {
+        if (!raw) {
+            return;
+        }
+        try {
+            stty(savedMode);
+        } catch (IOException ignored) {}
+        raw = false;
+    }
+
+    // Bytes not yet consumed, or block until more arrive; null at EOF. Typeahead that
+    // follows an Enter stays in the buffer for the next line.
+    public ByteBuffer read() throws IOException {
+        if (buffer.hasRemaining()) {
+            return buffer;
+        }
+        buffer.clear();
+        int n = input.read(buffer);
+        if (n < 0) {
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String stty(String... args) throws IOException {
+        List<String> command = new ArrayList<>(args.length + 1);
+        command.add("stty");
+        command.addAll(Arrays.asList(args));
+        // stty acts on its stdin, which must be the terminal itself
+        Process process = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return output;
+    }
+}
+
+// Interactive line editing in raw mode: cursor movement, kill commands, persistent history
+// with Ctrl-R reverse search, and Tab completion. Each keystroke redraws only what it
+// changed, so typing at the end of the line costs the same however long the line is.
+class LineEditor implements Closeable {
+    private final Terminal terminal;
+    private final PrintStream out;
+    private final Completer completer;
+    private final KeyDecoder decoder = new KeyDecoder();
+    private final StringBuilder line = new StringBuilder();
+    private final HistoryStore history;
+    private final StringBuilder query = new StringBuilder();
+
+    private String prompt;
+    private int cursor;
+    private int historyIndex;
+    private String pendingLine;
+    private boolean lastWasTab;
+    private boolean endOfInput;
+    // Ctrl-R state: the entry shown for the query, or -1 when nothing matches
+    private boolean searching;
+    private int searchIndex;
+
+    // history may be null, in which case Up, Down and Ctrl-R find nothing
+    public LineEditor(Terminal terminal, PrintStream out, Completer completer, HistoryStore history) {
+        this.terminal = terminal;
+        this.out = out;
+        this.completer = completer;
+        this.history = history;
+    }
+
+    // Read one line, or return null at end of input (Ctrl-D on an empty line)
+    public String readLine(String prompt) throws IOException {
+        this.prompt = prompt;
+        line.setLength(0);
+        cursor = 0;
+        historyIndex = historySize();
+        pendingLine = null;
+        lastWasTab = false;
+        endOfInput = false;
+        searching = false;
+        decoder.reset();
+
+        out.print(prompt);
+        out.flush();
+        terminal.enterRawMode();
+        try {
+            while (true) {
+                ByteBuffer bytes = terminal.read();
+                if (bytes == null) {
+                    return line.length() > 0 ? line.toString() : null;
+                }
+                while (bytes.hasRemaining()) {
+                    int key = decoder.feed(bytes.get());
+                    if (key == KeyDecoder.NONE) {
+                        continue;
+                    }
+                    if (searching ? search(key) : handle(key)) {
+                        return endOfInput ? null : line.toString();
+                    }
+                }
+                out.flush();
+            }
+        } finally {
+            out.flush();
+            terminal.restore();
+        }
+    }
+
+    // Apply one key; returns true once the line is finished or input has ended
+    private boolean handle(int key) throws IOException {
+        boolean tab = key == KeyDecoder.TAB;
+        try {
+            switch (key) {
+                case KeyDecoder.ENTER:
+                    out.print("\r\n");
+                    return true;
+                case KeyDecoder.TAB:
+                    complete();
+                    break;
+                case KeyDecoder.BACKSPACE:
+                    if (cursor > 0) {
+                        cursor--;
+                        line.deleteCharAt(cursor);
+                        out.print('\b');
+                        redrawTail(1);
+                    }
+                    break;
+                case KeyDecoder.DELETE:
+                    if (cursor < line.length()) {
+                        line.deleteCharAt(cursor);
+                        redrawTail(1);
+                    }
+                    break;
+                case KeyDecoder.LEFT:
+                    if (cursor > 0) {
+                        cursor--;
+                        out.print("\033[D");
+                    }
+                    break;
+                case KeyDecoder.RIGHT:
+                    if (cursor < line.length()) {
+                        cursor++;
+                        out.print("\033[C");
+                    }
+                    break;
+                case KeyDecoder.HOME:
+                    moveLeft(cursor);
+                    cursor = 0;
+                    break;
+                case KeyDecoder.END:
+                    moveRight(line.length() - cursor);
+                    cursor = line.length();
+                    break;
+                case KeyDecoder.UP:
+                    recall(historyIndex - 1);
+                    break;
+                case KeyDecoder.DOWN:
+                    recall(historyIndex + 1);
+                    break;
+                case KeyDecoder.KILL_LINE:
+                    replaceLine("");
+                    break;
+                case KeyDecoder.KILL_TO_END:
+                    if (cursor < line.length()) {
+                        int removed = line.length() - cursor;
+                        line.setLength(cursor);
+                        redrawTail(removed);
+                    }
+                    break;
+                case KeyDecoder.DELETE_WORD:
+                    deleteWordBefore();
+                    break;
+                case KeyDecoder.SEARCH:
+                    searching = true;
+                    query.setLength(0);
+                    searchIndex = -1;
+                    redrawSearch();
+                    break;
+                case KeyDecoder.CLEAR_SCREEN:
+                    out.print("\033[H\033[2J");
+                    redrawLine();
+                    break;
+                case KeyDecoder.INTERRUPT:
+                    out.print("^C\r\n");
+                    line.setLength(0);
+                    cursor = 0;
+                    historyIndex = historySize();
+                    out.print(prompt);
+                    break;
+                case KeyDecoder.EOF:
+                    if (line.length() == 0) {
+                        out.print("\r\n");
+                        endOfInput = true;
+                        return true;
+                    }
+                    if (cursor < line.length()) {
+                        line.deleteCharAt(cursor);
+                        redrawTail(1);
+                    }
+                    break;
+                default:
+                    if (key >= 0) {
+                        insert(key);
+                    }
+                    break;
+            }
+            return false;
+        } finally {
+            lastWasTab = tab;
+        }
+    }
+
+    // A key typed during reverse search: text refines the query, Ctrl-R steps to an older
+    // match, Enter runs the match, Ctrl-C abandons the search, and any other key keeps the
+    // match for editing and is then handled as usual
+    private boolean search(int key) throws IOException {
+        switch (key) {
+            case KeyDecoder.SEARCH:
+                if (query.length() > 0) {
+                    findMatch(searchIndex < 0 ? historySize() : searchIndex);
+                }
+                redrawSearch();
+                return false;
+            case KeyDecoder.BACKSPACE:
+                if (query.length() > 0) {
+                    query.setLength(query.length() - 1);
+                    searchIndex = -1;
+                    if (query.length() > 0) {
+                        findMatch(historySize());
+                    }
+                }
+                redrawSearch();
+                return false;
+            case KeyDecoder.INTERRUPT:
+                searching = false;
+                line.setLength(0);
+                cursor = 0;
+                redrawLine();
+                return false;
+            default:
+                break;
+        }
+        if (key >= 0) {
+            query.appendCodePoint(key);
+            // A longer query can still match the current entry, so search from it inclusively
+            findMatch(searchIndex < 0 ? historySize() : searchIndex + 1);
+            redrawSearch();
+            return false;
+        }
+
+        searching = false;
+        historyIndex = historySize();
+        cursor = line.length();
+        redrawLine();
+        return handle(key);
+    }
+
+    private void findMatch(int before) throws IOException {
+        int found = history == null ? -1 : history.searchBackward(query.toString(), before);
+        if (found < 0) {
+            out.print('\007');
+            return;
+        }
+        searchIndex = found;
+        line.setLength(0);
+        line.append(history.get(found));
+    }
+
+    private void redrawSearch() {
+        out.print('\r');
+        out.print("(reverse-i-search)`");
+        out.append(query);
+        out.print("': ");
+        out.append(line);
+        out.print("\033[K");
+    }
+
+    private int historySize() throws IOException {
+        return history == null ? 0 : history.size();
+    }
+
+    private void insert(int codePoint) {
+        String text = new String(Character.toChars(codePoint));
+        line.insert(cursor, text);
+        cursor += text.length();
+        out.print(text);
+        if (cursor < line.length()) {
+            // Typing mid-line rewrites only the characters after the cursor
+            redrawTail(0);
+        }
+    }
+
+    // Repaint from the cursor to the end of the line, blank out `erased` stale cells,
+    // and put the cursor back where it was
+    private void redrawTail(int erased) {
+        int tail = line.length() - cursor;
+        out.append(line, cursor, line.length());
+        for (int i = 0; i < erased; i++) {
+            out.print(' ');
+        }
+        moveLeft(tail + erased);
+    }
+
+    private void redrawLine() {
+        out.print('\r');
+        out.print(prompt);
+        out.append(line);
+        out.print("\033[K");
+        moveLeft(line.length() - cursor);
+    }
+
+    private void replaceLine(String text) {
+        line.setLength(0);
+        line.append(text);
+        cursor = line.length();
+        redrawLine();
+    }
+
+    private void recall(int index) throws IOException {
+        int size = historySize();
+        if (index < 0 || index > size) {
+            return;
+        }
+        if (historyIndex >= size) {
+            pendingLine = line.toString();
+        }
+        historyIndex = index;
+        replaceLine(index == size ? pendingLine : history.get(index));
+    }
+
+    private void deleteWordBefore() {
+        int start = cursor;
+        while (start > 0 && line.charAt(start - 1) == ' ') {
+            start--;
+        }
+        while (start > 0 && line.charAt(start - 1) != ' ') {
+            start--;
+        }
+        int removed = cursor - start;
+        if (removed == 0) {
+            return;
+        }
+        line.delete(start, cursor);
+        moveLeft(removed);
+        cursor = start;
+        redrawTail(removed);
+    }
+
+    // Only the command word is completed; a second Tab lists the choices
+    private void complete() {
+        String word = line.substring(0, cursor);
+        if (word.isEmpty() || word.indexOf(' ') >= 0) {
+            out.print('\007');
+            return;
+        }
+        List<String> candidates = completer.candidates(word);
+        if (candidates.isEmpty()) {
+            out.print('\007');
+            return;
+        }
+        String completion = candidates.size() == 1 ? candidates.get(0) + " " : Completer.commonPrefix(candidates);
+        if (completion.length() > word.length()) {
+            String added = completion.substring(word.length());
+            line.insert(cursor, added);
+            cursor += added.length();
+            out.print(added);
+            if (cursor < line.length()) {
+                redrawTail(0);
+            }
+            return;
+        }
+        if (!lastWasTab) {
+            out.print('\007');
+            return;
+        }
+        out.print("\r\n");
+        out.print(String.join("  ", candidates));
+        out.print("\r\n");
+        redrawLine();
+    }
+
+    private void moveLeft(int n) {
+        if (n > 0) {
+            out.print("\033[" + n + "D");
+        }
+    }
+
+    private void moveRight(int n) {
+        if (n > 0) {
+            out.print("\033[" + n + "C");
+        }
+    }
+
+    @Override
+    public void close() {
+        terminal.restore();
+    }
+}
@@ -1,35 +1,229 @@
-
-
-
-
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.*;
-import java.util.ArrayList;
-import java.util.List;
 
+// One parsed command. Token text lives in a single char array with offset/length pairs;
+// tokens are exposed as CharSequence views and only become Strings when asked for,
+// typically when they turn into process arguments.
+//
+// A command with anything to expand ($, glob characters, an assignment) also carries how
+// each character was quoted, and where its redirect targets sit in the array, for Expander.
 class CommandLine {
-    private final List<String> tokens;
+    // 2>&1 sends stderr wherever stdout ends up going, >&2 stdout wherever stderr does;
+    // the stream that follows has no target of its own
+    enum Duplicate { NONE, ERROR_TO_OUTPUT, OUTPUT_TO_ERROR }
+
+    private final char[] chars;
+    private final byte[] quoting;
+    private final int[] targetSpans;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final String[] materialized;
     private final String outputFile;
     private final String errorFile;
     private final boolean appendOutput;
     private final boolean appendError;
+    private final StdinRedirect input;
+    private final Duplicate duplicate;
+    private final List<String> tokens;
+    // Redirect targets made absolute against the directory they were last resolved in
+    private Resolved resolved;
 
-    public CommandLine(List<String> tokens, String outputFile, String errorFile, boolean appendOutput, boolean appendError) {
-        this.tokens = tokens;
+    private record Resolved(String directory, String outputFile, String errorFile) {}
+
+    public CommandLine(char[] chars, int[] offsets, int[] lengths, String outputFile, String errorFile,
+                       boolean appendOutput, boolean appendError) {
+        this(chars, null, null, offsets, lengths, outputFile, errorFile, appendOutput, appendError, null,
+                Duplicate.NONE);
+    }
+
+    public CommandLine(char[] chars, byte[] quoting, int[] targetSpans, int[] offsets, int[] lengths,
+                       String outputFile, String errorFile, boolean appendOutput, boolean appendError,
+                       StdinRedirect input, Duplicate duplicate) {
+        this.chars = chars;
+        this.quoting = quoting;
+        this.targetSpans = targetSpans;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.materialized = new String[offsets.length];
         this.outputFile = outputFile;
         this.errorFile = errorFile;
         this.appendOutput = appendOutput;
         this.appendError = appendError;
+        this.input = input;
+        this.duplicate = duplicate;
+        this.tokens = new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return tokenString(index);
+            }
+
+            @Override
+            public int size() {
+                return offsets.length;
+            }
+        };
+    }
+
+    public CommandLine(List<String> tokens, String outputFile, String errorFile, boolean appendOutput, boolean appendError) {
+        this(tokens, outputFile, errorFile, appendOutput, appendError, null);
+    }
+
+    public CommandLine(List<String> tokens, String outputFile, String errorFile, boolean appendOutput, boolean appendError,
+                       StdinRedirect input) {
+        this(tokens, outputFile, errorFile, appendOutput, appendError, input, Duplicate.NONE);
+    }
+
+    public CommandLine(List<String> tokens, String outputFile, String errorFile, boolean appendOutput, boolean appendError,
+                       StdinRedirect input, Duplicate duplicate) {
+        this(new char[0], null, null, new int[tokens.size()], new int[tokens.size()], outputFile, errorFile, appendOutput,
+                appendError, input, duplicate);
+        tokens.toArray(materialized);
+    }
+
+    // The same command with other redirect targets, sharing this one's token storage
+    public CommandLine withTargets(String outputFile, String errorFile) {
+        CommandLine copy = new CommandLine(chars, quoting, targetSpans, offsets, lengths, outputFile, errorFile,
+                appendOutput, appendError, input, duplicate);
+        System.arraycopy(materialized, 0, copy.materialized, 0, materialized.length);
+        return copy;
     }
 
+    // The same command without its first `count` tokens, e.g. the keywords before it
+    public CommandLine dropTokens(int count) {
+        CommandLine copy = new CommandLine(chars, quoting, targetSpans, Arrays.copyOfRange(offsets, count, offsets.length),
+                Arrays.copyOfRange(lengths, count, lengths.length), outputFile, errorFile, appendOutput, appendError, input,
+                duplicate);
+        System.arraycopy(materialized, count, copy.materialized, 0, copy.materialized.length);
+        return copy;
+    }
+
+    // Read-only list view; each element is materialized on first access
     public List<String> getTokens() {
         return tokens;
     }
 
+    public int size() {
+        return offsets.length;
+    }
+
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    // A view over the token's characters, without copying them
+    public CharSequence token(int index) {
+        String s = materialized[index];
+        return s != null ? s : CharBuffer.wrap(chars, offsets[index], lengths[index]);
+    }
+
+    public String tokenString(int index) {
+        String s = materialized[index];
+        if (s == null) {
+            s = new String(chars, offsets[index], lengths[index]);
+            materialized[index] = s;
+        }
+        return s;
+    }
+
+    public boolean tokenEquals(int index, String value) {
+        String s = materialized[index];
+        if (s != null) {
+            return s.equals(value);
+        }
+        if (lengths[index] != value.length()) {
+            return false;
+        }
+        int offset = offsets[index];
+        for (int i = 0; i < lengths[index]; i++) {
+            if (chars[offset + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Append a token to a builder straight from the backing array
+    public void appendToken(int index, StringBuilder target) {
+        String s = materialized[index];
+        if (s != null) {
+            target.append(s);
+        } else {
+            target.append(chars, offsets[index], lengths[index]);
+        }
+    }
+
+    // Write a token to a sink straight from the backing array
+    public void printToken(int index, OutputSink out) throws IOException {
+        String s = materialized[index];
+        if (s != null) {
+            out.print(s);
+        } else {
+            out.print(chars, offsets[index], lengths[index]);
+        }
+    }
+
+    // True when Expander has work to do; false for the common plain command
+    public boolean needsExpansion() {
+        return quoting != null;
+    }
+
+    char[] chars() {
+        return chars;
+    }
+
+    // LineParser.UNQUOTED, LITERAL or DOUBLE_QUOTED for each character of chars()
+    byte[] quoting() {
+        return quoting;
+    }
+
+    int offset(int index) {
+        return offsets[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    // Offset and length of the stdout target (0, 1), stderr target (2, 3) and stdin file or
+    // here-string word (4, 5) in chars()
+    int[] targetSpans() {
+        return targetSpans;
+    }
+
     public String getOutputFile() {
         return outputFile;
     }
 
+    // The targets as absolute paths. A parsed line is cached and usually runs in the same
+    // directory again, so the answer for the last directory is kept; after a cd it is
+    // worked out afresh.
+    public String resolvedOutputFile(String directory) {
+        return resolve(directory).outputFile();
+    }
+
+    public String resolvedErrorFile(String directory) {
+        return resolve(directory).errorFile();
+    }
+
+    private Resolved resolve(String directory) {
+        Resolved current = resolved;
+        if (current == null || !current.directory().equals(directory)) {
+            // Immutable, so other pipeline threads see either the old record or the new one
+            current = new Resolved(directory, absolute(outputFile, directory), absolute(errorFile, directory));
+            resolved = current;
+        }
+        return current;
+    }
+
+    private static String absolute(String path, String directory) {
+        if (path == null || new File(path).isAbsolute()) {
+            return path;
+        }
+        return new File(directory, path).getPath();
+    }
+
     public String getErrorFile() {
         return errorFile;
     }
@@ -41,155 +235,753 @@ class CommandLine {
     public boolean isAppendError() {
         return appendError;
     }
+
+    // Where stdin comes from, or null when it is not redirected
+    public StdinRedirect getInput() {
+        return input;
+    }
+
+    public Duplicate duplicate() {
+        return duplicate;
+    }
+
+    // Whether stdout goes somewhere other than the next stage or the session
+    public boolean redirectsOutput() {
+        return outputFile != null || duplicate == Duplicate.OUTPUT_TO_ERROR;
+    }
+
+    public boolean hasRedirects() {
+        return outputFile != null || errorFile != null || input != null || duplicate != Duplicate.NONE;
+    }
+}
+
+// A command's stdin redirect as parsed: `< file`, `<<< word` or a here-document. The file
+// name and the word are expanded like any redirect target. A here-document's body is set
+// once the parser reaches the lines after its command; when its delimiter was unquoted,
+// the body keeps a quoting mark per character for the expander, as tokens do.
+class StdinRedirect {
+    enum Kind { FILE, HERE_STRING, HERE_DOCUMENT }
+
+    private final Kind kind;
+    private String text;
+    private char[] chars;
+    private byte[] quoting;
+
+    public StdinRedirect(Kind kind, String text) {
+        this.kind = kind;
+        this.text = text;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    // The file name, the word, or the body; an unexpanded body comes out as typed
+    public String text() {
+        return text != null ? text : new String(chars);
+    }
+
+    // True for a here-document body with $ expansions in it
+    public boolean needsExpansion() {
+        return quoting != null;
+    }
+
+    char[] chars() {
+        return chars;
+    }
+
+    byte[] quoting() {
+        return quoting;
+    }
+
+    void setBody(String body) {
+        text = body;
+    }
+
+    void setBody(char[] chars, byte[] quoting) {
+        this.chars = chars;
+        this.quoting = quoting;
+    }
+}
+
+// A sequence of commands joined by '|', each stage feeding the next
+class Pipeline {
+    // How the pipeline is joined to the one after it
+    enum Next { SEQUENCE, AND, OR }
+
+    private final List<CommandLine> stages;
+    private final boolean background;
+    private final Next next;
+    private final long keywords;
+    private final String source;
+    private final int start;
+    private final int end;
+
+    public Pipeline(List<CommandLine> stages) {
+        this(stages, false, Next.SEQUENCE, 0, "", 0, 0);
+    }
+
+    public Pipeline(List<CommandLine> stages, boolean background, Next next, long keywords, String source, int start,
+                    int end) {
+        this.stages = stages;
+        this.background = background;
+        this.next = next;
+        this.keywords = keywords;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    public List<CommandLine> getStages() {
+        return stages;
+    }
+
+    public int size() {
+        return stages.size();
+    }
+
+    public boolean isSingleCommand() {
+        return stages.size() == 1;
+    }
+
+    // Terminated by '&' rather than ';' or the end of the line
+    public boolean isBackground() {
+        return background;
+    }
+
+    // Followed by && or ||, or by nothing that depends on its status
+    public Next next() {
+        return next;
+    }
+
+    // Whether the first stage's token at index (below 64) is an unquoted reserved word
+    public boolean isKeyword(int index) {
+        return index < 64 && (keywords & (1L << index)) != 0;
+    }
+
+    // The same pipeline without the first `count` tokens of its first stage
+    public Pipeline dropWords(int count) {
+        List<CommandLine> remaining = new ArrayList<>(stages);
+        remaining.set(0, stages.get(0).dropTokens(count));
+        return new Pipeline(remaining, background, next, count < 64 ? keywords >>> count : 0, source, start, end);
+    }
+
+    public boolean isEmpty() {
+        return stages.size() == 1 && stages.get(0).isEmpty() && !stages.get(0).hasRedirects();
+    }
+
+    // Same pipeline with its stages replaced, e.g. by their expansions
+    public Pipeline withStages(List<CommandLine> replacement) {
+        return new Pipeline(replacement, background, next, keywords, source, start, end);
+    }
+
+    // The whole input line this pipeline came from
+    public String source() {
+        return source;
+    }
+
+    // The pipeline as typed, for job listings
+    public String text() {
+        return source.substring(start, end).trim();
+    }
 }
 
+// Reusable single-pass tokenizer. Characters are unquoted into one scratch buffer and
+// token boundaries into offset/length arrays, all kept across calls; each command then
+// costs one right-sized copy of its characters instead of a String and builder per token.
+// A parallel byte per character records how it was quoted, which is all the expansion
+// stage needs to know; it is copied out only for commands that have something to expand.
 class LineParser {
     public static final char SINGLE = '\'';
     public static final char DOUBLE = '"';
     public static final char ESCAPE = '\\';
-    
-    private final String input;
-    private int index;
-    
-    public LineParser(String input) {
-        this.input = input;
-        this.index = 0;
-    }
-    
-    public CommandLine parse() {
-        List<String> tokens = new ArrayList<>();
-        String outputFile = null;
-        String errorFile = null;
-        boolean appendOutput = false;
-        boolean appendError = false;
-        StringBuilder currentToken = new StringBuilder();
+    public static final char PIPE = '|';
+    public static final char SEPARATOR = ';';
+    public static final char BACKGROUND = '&';
+    public static final char REDIRECT = '>';
+    public static final char INPUT = '<';
+    public static final char DOLLAR = '$';
+    public static final char NEWLINE = '\n';
+
+    // Words that open or close a compound command where a command name may appear
+    private static final Set<String> RESERVED = Set.of(
+            "if", "then", "elif", "else", "fi", "for", "in", "do", "done", "while", "until", "function", "{", "}");
+
+    // How a character was quoted: unquoted characters are subject to every expansion,
+    // double-quoted ones to $ expansion only, literal ones (single quotes, backslash) to none
+    public static final byte UNQUOTED = 0;
+    public static final byte LITERAL = 1;
+    public static final byte DOUBLE_QUOTED = 2;
+
+    private static final int NONE = 0;
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+    private static final int STDIN = 3;
+    private static final int HERE_STRING = 4;
+    private static final int HERE_DOCUMENT = 5;
+    // >&N and 2>&N before their target word, and &> before its file
+    private static final int DUPLICATE_OUTPUT = 6;
+    private static final int DUPLICATE_ERROR = 7;
+    private static final int BOTH = 8;
+
+    // A here-document waiting for its body, which starts on the line after its command
+    record HereDocument(StdinRedirect redirect, String delimiter, boolean stripTabs, boolean expand) {
+        // Whether a line of input ends the body
+        boolean isDelimiter(String line) {
+            return isDelimiter(line, 0, line.length());
+        }
+
+        boolean isDelimiter(String text, int start, int end) {
+            while (stripTabs && start < end && text.charAt(start) == '\t') {
+                start++;
+            }
+            return end - start == delimiter.length() && text.startsWith(delimiter, start);
+        }
+    }
+
+    private char[] buffer = new char[256];
+    private byte[] quoting = new byte[256];
+    private int length;
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int tokenCount;
+
+    // Per-command state, reset by beginCommand()
+    private String outputFile;
+    private String errorFile;
+    private boolean appendOutput;
+    private boolean appendError;
+    private StdinRedirect input;
+    private CommandLine.Duplicate duplicate;
+    private int pendingRedirect;
+    // <<- strips leading tabs from the body and its delimiter line
+    private boolean stripTabs;
+    private boolean expandable;
+    private int[] targetSpans;
+    // Unquoted reserved words among the first 64 tokens; kept for the first stage only
+    private long keywords;
+    private long firstStageKeywords;
+    private int stageCount;
+    // Here-documents of the current line, and the first one the input ended inside
+    private final List<HereDocument> hereDocuments = new ArrayList<>(1);
+    private HereDocument unfinished;
+
+    // Per-token state
+    private int tokenStart;
+    private boolean inToken;
+    private boolean tokenQuoted;
+
+    // Parse a line that is expected to hold a single pipeline
+    public Pipeline parsePipeline(String input) {
+        List<Pipeline> pipelines = parseLine(input);
+        return pipelines.isEmpty()
+                ? new Pipeline(List.of(new CommandLine(List.of(), null, null, false, false)))
+                : pipelines.get(0);
+    }
+
+    // Parse the whole line: pipelines separated by unquoted ';', '&', newline, '&&' or '||',
+    // each split into stages on unquoted '|'. Empty pipelines (e.g. after a trailing ';')
+    // are dropped. A newline right after '|' continues the pipeline. Here-document bodies
+    // are taken from the lines after the newline that ends their command.
+    public List<Pipeline> parseLine(String input) {
+        List<Pipeline> pipelines = new ArrayList<>(1);
+        List<CommandLine> stages = new ArrayList<>(2);
+        int pipelineStart = 0;
+        int end = input.length();
         boolean inSingleQuotes = false;
         boolean inDoubleQuotes = false;
         boolean escaped = false;
-        boolean foundRedirect = false;
-        boolean isErrorRedirect = false;
-        
-        while (index < input.length()) {
+        // Set right after a '>' so a following '>' turns it into an append, or '&' into >&
+        boolean afterRedirect = false;
+        // Set from a '|' up to the next non-blank character
+        boolean afterPipe = false;
+        hereDocuments.clear();
+        unfinished = null;
+
+        beginCommand();
+        for (int index = 0; index < end; index++) {
             char c = input.charAt(index);
-            
+            if (afterPipe && !Character.isWhitespace(c)) {
+                afterPipe = false;
+            }
+
+            if (afterRedirect) {
+                afterRedirect = false;
+                if (c == BACKGROUND && (pendingRedirect == STDOUT || pendingRedirect == STDERR)) {
+                    pendingRedirect = pendingRedirect == STDERR ? DUPLICATE_ERROR : DUPLICATE_OUTPUT;
+                    continue;
+                }
+                if (c == REDIRECT) {
+                    if (pendingRedirect == STDERR) {
+                        appendError = true;
+                    } else {
+                        appendOutput = true;
+                    }
+                    continue;
+                }
+            }
+
             if (inSingleQuotes) {
                 if (c == SINGLE) {
                     inSingleQuotes = false;
                 } else {
-                    currentToken.append(c);
+                    append(c, LITERAL);
                 }
             } else if (inDoubleQuotes) {
                 if (escaped) {
                     // Inside double quotes, only preserve specific escaped characters
-                    if (c == '"' || c == '\\') {
-                        currentToken.append(c);
+                    if (c == DOUBLE || c == ESCAPE || c == DOLLAR) {
+                        append(c, LITERAL);
                     } else {
                         // Keep both the backslash and the character
-                        currentToken.append(ESCAPE).append(c);
+                        append(ESCAPE, DOUBLE_QUOTED);
+                        append(c, DOUBLE_QUOTED);
                     }
                     escaped = false;
                 } else if (c == ESCAPE) {
                     escaped = true;
                 } else if (c == DOUBLE) {
                     inDoubleQuotes = false;
+                } else if (c == DOLLAR) {
+                    index = appendDollar(input, index, DOUBLE_QUOTED);
                 } else {
-                    currentToken.append(c);
+                    append(c, DOUBLE_QUOTED);
                 }
-            } else {
-                if (escaped) {
-                    // Outside quotes, preserve the literal value of the next character
-                    currentToken.append(c);
-                    escaped = false;
-                } else if (c == ESCAPE) {
-                    escaped = true;
-                } else if (c == SINGLE) {
-                    inSingleQuotes = true;
-                } else if (c == DOUBLE) {
-                    inDoubleQuotes = true;
-                } else if (c == '2' && index + 2 < input.length() && 
-                         input.charAt(index + 1) == '>' && input.charAt(index + 2) == '>') {
-                    handleToken(tokens, currentToken, foundRedirect, isErrorRedirect, outputFile, errorFile);
-                    foundRedirect = true;
-                    isErrorRedirect = true;
-                    appendError = true;
-                    index += 2;
-                } else if (c == '2' && index + 1 < input.length() && input.charAt(index + 1) == '>') {
-                    handleToken(tokens, currentToken, foundRedirect, isErrorRedirect, outputFile, errorFile);
-                    foundRedirect = true;
-                    isErrorRedirect = true;
-                    index++;
-                } else if (c == '1' && index + 2 < input.length() && 
-                         input.charAt(index + 1) == '>' && input.charAt(index + 2) == '>') {
-                    handleToken(tokens, currentToken, foundRedirect, isErrorRedirect, outputFile, errorFile);
-                    foundRedirect = true;
-                    isErrorRedirect = false;
-                    appendOutput = true;
+            } else if (escaped) {
+                // Outside quotes, preserve the literal value of the next character
+                append(c, LITERAL);
+                tokenQuoted = true;
+                escaped = false;
+            } else if (c == ESCAPE) {
+                escaped = true;
+                startToken();
+            } else if (c == SINGLE) {
+                inSingleQuotes = true;
+                startToken();
+                tokenQuoted = true;
+            } else if (c == DOUBLE) {
+                inDoubleQuotes = true;
+                startToken();
+                tokenQuoted = true;
+            } else if (c == REDIRECT) {
+                requireTarget(">");
+                // A bare unquoted "1" or "2" right before '>' names the descriptor
+                int fd = STDOUT;
+                if (pendingRedirect == NONE && inToken && !tokenQuoted && length - tokenStart == 1
+                        && (buffer[tokenStart] == '1' || buffer[tokenStart] == '2')) {
+                    fd = buffer[tokenStart] == '2' ? STDERR : STDOUT;
+                    length = tokenStart;
+                    inToken = false;
+                } else {
+                    endToken();
+                }
+                pendingRedirect = fd;
+                afterRedirect = true;
+            } else if (c == INPUT) {
+                requireTarget(input.startsWith("<<<", index) ? "<<<" : input.startsWith("<<", index) ? "<<" : "<");
+                // A bare unquoted "0" right before '<' names stdin, the only descriptor it takes
+                if (inToken && !tokenQuoted && length - tokenStart == 1 && buffer[tokenStart] == '0') {
+                    length = tokenStart;
+                    inToken = false;
+                } else {
+                    endToken();
+                }
+                if (input.startsWith("<<<", index)) {
+                    pendingRedirect = HERE_STRING;
                     index += 2;
-                } else if (c == '>' && index + 1 < input.length() && input.charAt(index + 1) == '>') {
-                    handleToken(tokens, currentToken, foundRedirect, isErrorRedirect, outputFile, errorFile);
-                    foundRedirect = true;
-                    isErrorRedirect = false;
-                    appendOutput = true;
+                } else if (input.startsWith("<<", index)) {
+                    pendingRedirect = HERE_DOCUMENT;
                     index++;
-                } else if (c == '>' || (c == '1' && index + 1 < input.length() && 
-                         input.charAt(index + 1) == '>')) {
-                    handleToken(tokens, currentToken, foundRedirect, isErrorRedirect, outputFile, errorFile);
-                    foundRedirect = true;
-                    isErrorRedirect = false;
-                    if (c == '1') index++;
-                } else if (Character.isWhitespace(c)) {
-                    if (currentToken.length() > 0) {
-                        if (foundRedirect) {
-                            if (isErrorRedirect) {
-                                errorFile = currentToken.toString();
-                            } else {
-                                outputFile = currentToken.toString();
-                            }
-                            currentToken.setLength(0);
-                            foundRedirect = false;
-                        } else {
-                            tokens.add(currentToken.toString());
-                            currentToken.setLength(0);
-                        }
+                    stripTabs = index + 1 < end && input.charAt(index + 1) == '-';
+                    if (stripTabs) {
+                        index++;
                     }
                 } else {
-                    currentToken.append(c);
+                    pendingRedirect = STDIN;
+                }
+            } else if (c == BACKGROUND && index + 1 < end && input.charAt(index + 1) == REDIRECT) {
+                // &>file and &>>file: both streams to one file
+                requireTarget("&>");
+                endToken();
+                pendingRedirect = BOTH;
+                afterRedirect = true;
+                index++;
+            } else if ((c == PIPE || c == BACKGROUND) && index + 1 < end && input.charAt(index + 1) == c) {
+                // && or ||: the next pipeline runs depending on this one's status
+                requireTarget(c == PIPE ? "||" : "&&");
+                endToken();
+                stages.add(endCommand());
+                addPipeline(pipelines, endPipeline(stages, false, c == PIPE ? Pipeline.Next.OR : Pipeline.Next.AND,
+                        input, pipelineStart, index));
+                stages = new ArrayList<>(2);
+                pipelineStart = ++index + 1;
+                beginCommand();
+            } else if (c == PIPE) {
+                requireTarget("|");
+                endToken();
+                stages.add(endCommand());
+                beginCommand();
+                afterPipe = true;
+            } else if (c == SEPARATOR || c == BACKGROUND || (c == NEWLINE && !afterPipe)) {
+                requireTarget(c == NEWLINE ? "newline" : String.valueOf(c));
+                endToken();
+                stages.add(endCommand());
+                addPipeline(pipelines, endPipeline(stages, c == BACKGROUND, Pipeline.Next.SEQUENCE, input, pipelineStart, index));
+                stages = new ArrayList<>(2);
+                if (c == NEWLINE) {
+                    index = readHereDocuments(input, index);
+                }
+                pipelineStart = index + 1;
+                beginCommand();
+            } else if (Character.isWhitespace(c)) {
+                endToken();
+                if (c == NEWLINE) {
+                    index = readHereDocuments(input, index);
                 }
+            } else if (c == DOLLAR) {
+                index = appendDollar(input, index, UNQUOTED);
+            } else {
+                // An '=' may make an assignment of the first word after any keywords
+                boolean commandWord = tokenCount == Long.numberOfTrailingZeros(~keywords);
+                if (c == '*' || c == '?' || c == '[' || (c == '=' && commandWord && pendingRedirect == NONE)) {
+                    expandable = true;
+                }
+                append(c, UNQUOTED);
             }
-            
-            index++;
         }
-        
-        // Handle any remaining token
-        if (currentToken.length() > 0) {
-            if (foundRedirect) {
-                if (isErrorRedirect) {
-                    errorFile = currentToken.toString();
-                } else {
-                    outputFile = currentToken.toString();
+
+        requireTarget("newline");
+        endToken();
+        stages.add(endCommand());
+        addPipeline(pipelines, endPipeline(stages, false, Pipeline.Next.SEQUENCE, input, pipelineStart, end));
+        if (unfinished == null && !hereDocuments.isEmpty()) {
+            unfinished = hereDocuments.get(0);
+        }
+        return pipelines;
+    }
+
+    // The here-document whose body the last parsed text ended before or inside, or null.
+    // More lines up to its delimiter would complete it.
+    public HereDocument unfinishedHereDocument() {
+        return unfinished;
+    }
+
+    // Take the bodies of the pending here-documents, in order, from the lines after the
+    // newline at `newline`; returns the index of the last character used
+    private int readHereDocuments(String input, int newline) {
+        int index = newline + 1;
+        for (HereDocument document : hereDocuments) {
+            int start = index;
+            while (true) {
+                if (index >= input.length()) {
+                    unfinished = document;
+                    hereDocuments.clear();
+                    return input.length() - 1;
                 }
-            } else {
-                tokens.add(currentToken.toString());
+                int lineEnd = input.indexOf(NEWLINE, index);
+                if (lineEnd < 0) {
+                    lineEnd = input.length();
+                }
+                if (document.isDelimiter(input, index, lineEnd)) {
+                    setBody(document, input, start, index);
+                    index = lineEnd + 1;
+                    break;
+                }
+                index = lineEnd + 1;
             }
         }
-        
-        return new CommandLine(tokens, outputFile, errorFile, appendOutput, appendError);
+        hereDocuments.clear();
+        return index - 1;
     }
-    
-    private void handleToken(List<String> tokens, StringBuilder currentToken, 
-                           boolean foundRedirect, boolean isErrorRedirect,
-                           String outputFile, String errorFile) {
-        if (currentToken.length() > 0) {
-            if (foundRedirect) {
-                if (isErrorRedirect) {
-                    errorFile = currentToken.toString();
-                } else {
-                    outputFile = currentToken.toString();
+
+    // The body is the text from start to end, minus leading tabs for <<-. Unless the
+    // delimiter was quoted, a backslash quotes '$', '`' and itself and joins lines, and
+    // what is left of '$' is expanded when the command runs, as inside double quotes.
+    private static void setBody(HereDocument document, String input, int start, int end) {
+        if (!document.stripTabs() && (!document.expand() || noneOf(input, start, end, DOLLAR, ESCAPE))) {
+            // Nothing to take out or mark, as with most long bodies: one copy of the text
+            document.redirect().setBody(input.substring(start, end));
+            return;
+        }
+        StringBuilder body = new StringBuilder(end - start);
+        byte[] marks = document.expand() ? new byte[end - start] : null;
+        boolean expansions = false;
+        boolean lineStart = true;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (lineStart && document.stripTabs() && c == '\t') {
+                continue;
+            }
+            lineStart = c == NEWLINE;
+            if (marks == null) {
+                body.append(c);
+                continue;
+            }
+            byte mark = DOUBLE_QUOTED;
+            if (c == ESCAPE && i + 1 < end) {
+                char next = input.charAt(i + 1);
+                if (next == NEWLINE) {
+                    i++;
+                    lineStart = true;
+                    continue;
+                }
+                if (next == DOLLAR || next == '`' || next == ESCAPE) {
+                    c = next;
+                    mark = LITERAL;
+                    i++;
+                }
+            } else if (c == DOLLAR) {
+                expansions = true;
+            }
+            marks[body.length()] = mark;
+            body.append(c);
+        }
+        if (!expansions) {
+            document.redirect().setBody(body.toString());
+            return;
+        }
+        char[] chars = new char[body.length()];
+        body.getChars(0, chars.length, chars, 0);
+        document.redirect().setBody(chars, Arrays.copyOf(marks, chars.length));
+    }
+
+    private static boolean noneOf(String input, int start, int end, char first, char second) {
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == first || c == second) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Pipeline endPipeline(List<CommandLine> stages, boolean background, Pipeline.Next next, String input,
+                                 int start, int end) {
+        stageCount = 0;
+        return new Pipeline(stages, background, next, firstStageKeywords, input, start, end);
+    }
+
+    // A '$' that may start an expansion. The text of a $(...) substitution is kept verbatim,
+    // quotes and operators included, for the expander to run; returns the last index used.
+    private int appendDollar(String input, int index, byte quote) {
+        expandable = true;
+        if (index + 1 < input.length() && input.charAt(index + 1) == '(') {
+            int close = substitutionEnd(input, index + 2);
+            if (close > 0) {
+                for (int i = index; i <= close; i++) {
+                    append(input.charAt(i), quote);
+                }
+                return close;
+            }
+        }
+        append(DOLLAR, quote);
+        return index;
+    }
+
+    // Index of the ')' closing a substitution whose text starts at `from`, or -1. Nested
+    // parentheses and quoted text are skipped over.
+    static int substitutionEnd(CharSequence text, int from) {
+        int depth = 1;
+        boolean inSingleQuotes = false;
+        boolean inDoubleQuotes = false;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inSingleQuotes) {
+                inSingleQuotes = c != SINGLE;
+            } else if (c == ESCAPE) {
+                i++;
+            } else if (inDoubleQuotes) {
+                inDoubleQuotes = c != DOUBLE;
+            } else if (c == SINGLE) {
+                inSingleQuotes = true;
+            } else if (c == DOUBLE) {
+                inDoubleQuotes = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void addPipeline(List<Pipeline> pipelines, Pipeline pipeline) {
+        if (!pipeline.isEmpty()) {
+            pipelines.add(pipeline);
+        }
+    }
+
+    // Parse a line that is expected to hold a single command
+    public CommandLine parse(String input) {
+        return parsePipeline(input).getStages().get(0);
+    }
+
+    private void beginCommand() {
+        length = 0;
+        tokenCount = 0;
+        outputFile = null;
+        errorFile = null;
+        appendOutput = false;
+        appendError = false;
+        input = null;
+        duplicate = CommandLine.Duplicate.NONE;
+        pendingRedirect = NONE;
+        inToken = false;
+        expandable = false;
+        targetSpans = null;
+        keywords = 0;
+    }
+
+    private CommandLine endCommand() {
+        if (stageCount++ == 0) {
+            firstStageKeywords = keywords;
+        }
+        int[] tokenOffsets = Arrays.copyOf(offsets, tokenCount);
+        int[] tokenLengths = Arrays.copyOf(lengths, tokenCount);
+        char[] chars = Arrays.copyOf(buffer, length);
+        if (!expandable) {
+            return new CommandLine(chars, null, null, tokenOffsets, tokenLengths, outputFile, errorFile, appendOutput,
+                    appendError, input, duplicate);
+        }
+        return new CommandLine(chars, Arrays.copyOf(quoting, length), targetSpans, tokenOffsets, tokenLengths,
+                outputFile, errorFile, appendOutput, appendError, input, duplicate);
+    }
+
+    // A redirect operator still waiting for its word when `next` comes is a syntax error
+    private void requireTarget(String next) {
+        if (pendingRedirect != NONE && !inToken) {
+            throw new IllegalArgumentException("syntax error near unexpected token `" + next + "'");
+        }
+    }
+
+    private void startToken() {
+        if (!inToken) {
+            inToken = true;
+            tokenQuoted = false;
+            tokenStart = length;
+        }
+    }
+
+    private void append(char c, byte quote) {
+        startToken();
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, length * 2);
+            quoting = Arrays.copyOf(quoting, length * 2);
+        }
+        quoting[length] = quote;
+        buffer[length++] = c;
+    }
+
+    private void endToken() {
+        if (!inToken) {
+            return;
+        }
+        inToken = false;
+
+        if (pendingRedirect != NONE) {
+            // Redirect targets are rare enough to become Strings right away. Their characters
+            // stay in the buffer, outside any token, in case they need expanding.
+            String target = new String(buffer, tokenStart, length - tokenStart);
+            if (pendingRedirect == HERE_DOCUMENT) {
+                // The delimiter is taken as typed, never expanded; quoting any of it leaves the body alone
+                input = new StdinRedirect(StdinRedirect.Kind.HERE_DOCUMENT, "");
+                hereDocuments.add(new HereDocument(input, target, stripTabs, !tokenQuoted));
+                if (!tokenQuoted) {
+                    expandable = true;
+                }
+                length = tokenStart;
+                pendingRedirect = NONE;
+                return;
+            }
+            if (pendingRedirect == DUPLICATE_OUTPUT || pendingRedirect == DUPLICATE_ERROR) {
+                boolean error = pendingRedirect == DUPLICATE_ERROR;
+                if (target.equals("1") || target.equals("2")) {
+                    duplicate(error, target.equals("1"));
+                    length = tokenStart;
+                    pendingRedirect = NONE;
+                    return;
+                }
+                if (error || target.equals("-") || target.chars().allMatch(Character::isDigit)) {
+                    throw new IllegalArgumentException(target + (error && !target.chars().allMatch(Character::isDigit)
+                            ? ": ambiguous redirect" : ": Bad file descriptor"));
+                }
+                // >&file is &>file
+                pendingRedirect = BOTH;
+            }
+            if (targetSpans == null) {
+                targetSpans = new int[6];
+            }
+            int span = pendingRedirect == STDERR ? 2 : pendingRedirect == STDOUT || pendingRedirect == BOTH ? 0 : 4;
+            targetSpans[span] = tokenStart;
+            targetSpans[span + 1] = length - tokenStart;
+            if (pendingRedirect == STDERR) {
+                if (duplicate == CommandLine.Duplicate.OUTPUT_TO_ERROR) {
+                    throw new IllegalArgumentException("`>&2' before `2>" + target + "' is not supported");
+                }
+                duplicate = CommandLine.Duplicate.NONE;
+                errorFile = target;
+            } else if (pendingRedirect == STDOUT || pendingRedirect == BOTH) {
+                if (pendingRedirect == STDOUT && duplicate == CommandLine.Duplicate.ERROR_TO_OUTPUT) {
+                    throw new IllegalArgumentException("`2>&1' before `>" + target + "' is not supported");
+                }
+                duplicate = CommandLine.Duplicate.NONE;
+                outputFile = target;
+                if (pendingRedirect == BOTH) {
+                    duplicate(true, true);
                 }
             } else {
-                tokens.add(currentToken.toString());
+                input = new StdinRedirect(pendingRedirect == STDIN ? StdinRedirect.Kind.FILE : StdinRedirect.Kind.HERE_STRING,
+                        target);
+            }
+            pendingRedirect = NONE;
+            return;
+        }
+
+        if (tokenCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, tokenCount * 2);
+            lengths = Arrays.copyOf(lengths, tokenCount * 2);
+        }
+        offsets[tokenCount] = tokenStart;
+        lengths[tokenCount] = length - tokenStart;
+        if (!tokenQuoted && tokenCount < 64 && isReserved(tokenStart, length - tokenStart)) {
+            keywords |= 1L << tokenCount;
+        }
+        tokenCount++;
+    }
+
+    // 2>&1 (error toward output) or 1>&2. Only where each stream finally goes is kept: the
+    // stream that follows drops its own target, and duplicating onto a stream that already
+    // follows this one changes nothing.
+    private void duplicate(boolean error, boolean toOutput) {
+        if (error != toOutput) {
+            // 2>&2 or 1>&1
+            return;
+        }
+        if (error && duplicate != CommandLine.Duplicate.OUTPUT_TO_ERROR) {
+            duplicate = CommandLine.Duplicate.ERROR_TO_OUTPUT;
+            errorFile = null;
+            appendError = false;
+        } else if (!error && duplicate != CommandLine.Duplicate.ERROR_TO_OUTPUT) {
+            duplicate = CommandLine.Duplicate.OUTPUT_TO_ERROR;
+            outputFile = null;
+            appendOutput = false;
+        }
+    }
+
+    // A reserved word, or a function definition's NAME() or bare ()
+    private boolean isReserved(int start, int count) {
+        if (count >= 2 && buffer[start + count - 2] == '(' && buffer[start + count - 1] == ')') {
+            for (int i = start; i < start + count - 2; i++) {
+                char c = buffer[i];
+                boolean nameChar = c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+                if (!nameChar || (i == start && c <= '9')) {
+                    return false;
+                }
             }
-            currentToken.setLength(0);
+            return true;
         }
+        char first = buffer[start];
+        // Cheap filter on the first character before building a String to look up
+        return count <= 8 && "itefdwu{}".indexOf(first) >= 0 && RESERVED.contains(new String(buffer, start, count));
     }
 }
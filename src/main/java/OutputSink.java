@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Where a builtin's stdout or stderr goes. Text is encoded as UTF-8 into one reused
+// buffer and handed over in bulk, either to a stream (the session's stdout/stderr or a
+// pipe) or to a redirect target's FileChannel, which RedirectTargets may keep open for
+// later commands as well.
+class OutputSink implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream stream;
+    private final FileChannel channel;
+    // Closed along with the sink: the channel itself, or the hold on a shared one
+    private final Closeable release;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private OutputSink(OutputStream stream, FileChannel channel, Closeable release) {
+        this.stream = stream;
+        this.channel = channel;
+        this.release = release;
+    }
+
+    // Write to a stream that stays open after the sink is closed
+    public static OutputSink of(OutputStream stream) {
+        return new OutputSink(stream, null, null);
+    }
+
+    // Write to a redirect target's channel; the sink closes it when it is closed
+    public static OutputSink of(FileChannel channel) {
+        return new OutputSink(null, channel, channel);
+    }
+
+    // Write to a channel held open by RedirectTargets; closing the sink hands it back
+    public static OutputSink borrow(FileChannel channel, Closeable release) {
+        return new OutputSink(null, channel, release);
+    }
+
+    public OutputSink print(CharSequence text) throws IOException {
+        // ASCII, by far the common case, is copied straight in without the encoder
+        int length = text.length();
+        if (length <= bytes.remaining() && isAscii(text, length)) {
+            for (int i = 0; i < length; i++) {
+                bytes.put((byte) text.charAt(i));
+            }
+            return this;
+        }
+        encode(CharBuffer.wrap(text));
+        return this;
+    }
+
+    public OutputSink print(char[] chars, int offset, int length) throws IOException {
+        if (length <= bytes.remaining() && isAscii(chars, offset, length)) {
+            for (int i = offset; i < offset + length; i++) {
+                bytes.put((byte) chars[i]);
+            }
+            return this;
+        }
+        encode(CharBuffer.wrap(chars, offset, length));
+        return this;
+    }
+
+    public OutputSink print(char c) throws IOException {
+        if (c < 0x80) {
+            if (!bytes.hasRemaining()) {
+                drain();
+            }
+            bytes.put((byte) c);
+            return this;
+        }
+        return print(String.valueOf(c));
+    }
+
+    public OutputSink println(CharSequence text) throws IOException {
+        return print(text).print('\n');
+    }
+
+    public OutputSink println() throws IOException {
+        return print('\n');
+    }
+
+    // Raw bytes, e.g. from a file or another process, bypass the encoder
+    public OutputSink write(byte[] data, int offset, int length) throws IOException {
+        if (length > bytes.remaining()) {
+            drain();
+        }
+        if (length > bytes.capacity()) {
+            writeFully(ByteBuffer.wrap(data, offset, length));
+        } else {
+            bytes.put(data, offset, length);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (release != null) {
+                release.close();
+            }
+        }
+    }
+
+    private static boolean isAscii(CharSequence text, int length) {
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(char[] chars, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (chars[i] >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void encode(CharBuffer chars) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        encoder.reset();
+    }
+
+    private void drain() throws IOException {
+        if (bytes.position() == 0) {
+            return;
+        }
+        bytes.flip();
+        writeFully(bytes);
+        bytes.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+    }
+}
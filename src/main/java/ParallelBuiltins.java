@@ -0,0 +1,190 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// parallel [-j N] [--completion-order] command [args...] ::: input...
+//
+// Runs the command once per input, up to N at a time (default: one per core). Each input
+// replaces {} in the arguments, or is appended when there is no {}. Without ::: the inputs
+// are read from stdin, one per line.
+//
+// Every job's stdout and stderr are captured into buffers of their own and written out
+// whole, so output from different jobs never interleaves. By default jobs are emitted in
+// input order, each as soon as it and all before it are done; --completion-order emits
+// each job the moment it finishes. The output goes through the builtin's own sinks, so
+// `parallel ... > file` and `2> file` apply to the combined output.
+//
+// The exit status is the number of failed jobs, capped at 101 as in GNU parallel.
+class ParallelBuiltins {
+    private static final int MAX_FAILURES = 101;
+
+    static void registerAll(Builtins builtins) {
+        builtins.register("parallel", ParallelBuiltins::parallel);
+    }
+
+    // One finished job: its captured output and exit status
+    private record Result(byte[] stdout, byte[] stderr, int status) {}
+
+    static int parallel(CommandLine command, IoContext io) throws IOException {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean completionOrder = false;
+        int i = 1;
+        for (; i < command.size(); i++) {
+            String arg = command.tokenString(i);
+            if (arg.equals("-j") && i + 1 < command.size()) {
+                arg = "-j" + command.tokenString(++i);
+            }
+            if (arg.startsWith("-j")) {
+                try {
+                    jobs = Integer.parseInt(arg.substring(2));
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs <= 0) {
+                    io.err().println("parallel: " + arg.substring(2) + ": invalid number of jobs");
+                    return 255;
+                }
+            } else if (arg.equals("--completion-order")) {
+                completionOrder = true;
+            } else if (arg.equals("-k")) {
+                completionOrder = false;
+            } else {
+                break;
+            }
+        }
+
+        List<String> template = new ArrayList<>();
+        List<String> inputs = null;
+        for (; i < command.size(); i++) {
+            String arg = command.tokenString(i);
+            if (arg.equals(":::")) {
+                inputs = command.getTokens().subList(i + 1, command.size());
+                break;
+            }
+            template.add(arg);
+        }
+        if (template.isEmpty()) {
+            io.err().println("parallel: usage: parallel [-j N] [--completion-order] command [args...] ::: input...");
+            return 255;
+        }
+        if (inputs == null) {
+            inputs = readLines(io.in());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, Math.max(1, inputs.size())),
+                Thread.ofVirtual().name("parallel-", 0).factory());
+        try {
+            CompletionService<Result> completed = new ExecutorCompletionService<>(pool);
+            List<Future<Result>> futures = new ArrayList<>(inputs.size());
+            for (String input : inputs) {
+                List<String> argv = substitute(template, input);
+                futures.add(completed.submit(() -> runJob(io.shell(), argv)));
+            }
+
+            int failures = 0;
+            for (int n = 0; n < futures.size(); n++) {
+                Future<Result> next = completionOrder ? completed.take() : futures.get(n);
+                Result result;
+                try {
+                    result = next.get();
+                } catch (ExecutionException e) {
+                    // A job that could not be started fails alone; the rest still run
+                    result = failed(new byte[0], e.getCause());
+                }
+                io.out().write(result.stdout(), 0, result.stdout().length);
+                io.err().write(result.stderr(), 0, result.stderr().length);
+                if (result.status() != 0) {
+                    failures++;
+                }
+            }
+            return Math.min(failures, MAX_FAILURES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 130;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<String> substitute(List<String> template, String input) {
+        List<String> argv = new ArrayList<>(template.size() + 1);
+        boolean replaced = false;
+        for (String arg : template) {
+            if (arg.contains("{}")) {
+                argv.add(arg.replace("{}", input));
+                replaced = true;
+            } else {
+                argv.add(arg);
+            }
+        }
+        if (!replaced) {
+            argv.add(input);
+        }
+        return argv;
+    }
+
+    // Builtins run in-process like any pipeline stage; anything else is spawned with its
+    // stdin on /dev/null and both output streams captured
+    private static Result runJob(Shell shell, List<String> argv) throws IOException, InterruptedException {
+        String name = argv.get(0);
+        Builtin builtin = shell.builtins().get(name);
+        if (builtin != null) {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int status = 0;
+            // cd, export and the like change only a copy of the session
+            Shell target = shell.builtins().affectsShell(name) ? shell.stageCopy() : shell;
+            try (OutputSink out = OutputSink.of(stdout); OutputSink err = OutputSink.of(stderr)) {
+                status = Builtins.run(builtin, name, new CommandLine(argv, null, null, false, false),
+                        new IoContext(target, InputStream.nullInputStream(), out, err));
+            }
+            return new Result(stdout.toByteArray(), stderr.toByteArray(), status);
+        }
+
+        String executable = shell.findCommand(name);
+        if (executable == null) {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int status;
+            try (OutputSink err = OutputSink.of(message)) {
+                status = shell.notFound(name, err);
+            }
+            return new Result(new byte[0], message.toByteArray(), status);
+        }
+        ProcessBuilder pb = shell.newProcessBuilder(executable, argv);
+        pb.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        long started = Stats.start();
+        Process process = pb.start();
+        Stats.record(Stats.Phase.SPAWN, started);
+        // Drain stderr alongside stdout so a chatty child cannot fill one pipe and stall
+        FutureTask<byte[]> stderr = new FutureTask<>(() -> process.getErrorStream().readAllBytes());
+        Thread.ofVirtual().start(stderr);
+        byte[] stdout = process.getInputStream().readAllBytes();
+        started = Stats.start();
+        int status = process.waitFor();
+        Stats.record(Stats.Phase.WAIT, started);
+        try {
+            return new Result(stdout, stderr.get(), status);
+        } catch (ExecutionException e) {
+            return failed(stdout, e.getCause());
+        }
+    }
+
+    // The job's failure is reported in its own stderr, and it counts as failed
+    private static Result failed(byte[] stdout, Throwable cause) {
+        String message = "parallel: " + (cause.getMessage() != null ? cause.getMessage() : cause.toString()) + "\n";
+        return new Result(stdout, message.getBytes(StandardCharsets.UTF_8), 1);
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.util.*;
+
+// Raw text to its parsed program, for scripts and loops that run the same few lines over
+// and over. Entries are immutable trees, shared by every run of the text. Nothing in them
+// depends on the working directory: each command keeps its redirect targets resolved for
+// the directory it last ran in (CommandLine.resolvedOutputFile). An entry is reused only
+// at the environment version it was parsed at; otherwise the text is parsed again and the
+// entry replaced. Least recently used entries are evicted first. Texts longer than
+// MAX_TEXT_LENGTH, which in practice means here-documents, are never cached: they rarely
+// repeat, and the entry would keep the whole body reachable.
+class ParseCache {
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_TEXT_LENGTH = 1 << 16;
+
+    private record Entry(Node program, long environmentVersion) {}
+
+    private final ScriptParser parser;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    };
+    private int capacity;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    public ParseCache(ScriptParser parser, int capacity) {
+        this.parser = parser;
+        this.capacity = capacity;
+    }
+
+    // SHELL_PARSE_CACHE sets the number of entries; 0 turns the cache off
+    public static int configuredCapacity(Map<String, String> environment) {
+        try {
+            String value = environment.get("SHELL_PARSE_CACHE");
+            return value == null ? DEFAULT_CAPACITY : Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    // Throws what ScriptParser.parse throws; failed parses are not cached
+    public Node parse(String text, long environmentVersion) {
+        Entry entry = entries.get(text);
+        if (entry != null) {
+            if (entry.environmentVersion() == environmentVersion) {
+                hits++;
+                return entry.program();
+            }
+            invalidations++;
+        }
+        misses++;
+        Node program = parser.parse(text);
+        if (capacity > 0 && text.length() <= MAX_TEXT_LENGTH) {
+            entries.put(text, new Entry(program, environmentVersion));
+        }
+        return program;
+    }
+
+    public void resize(int newCapacity) {
+        capacity = newCapacity;
+        // Shrinking evicts on the next put; do it now so the listing is honest
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long invalidations() {
+        return invalidations;
+    }
+}
+
+class ParseCacheBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.registerShellBuiltin("parsecache", ParseCacheBuiltins::parsecache);
+    }
+
+    // parsecache shows the counters; -c empties the cache; -s N sets its size
+    static int parsecache(CommandLine command, IoContext io) throws IOException {
+        ParseCache cache = io.shell().parseCache();
+        if (command.size() > 1 && command.tokenEquals(1, "-c")) {
+            cache.clear();
+            return 0;
+        }
+        if (command.size() > 2 && command.tokenEquals(1, "-s")) {
+            try {
+                cache.resize(Math.max(0, Integer.parseInt(command.tokenString(2))));
+                return 0;
+            } catch (NumberFormatException e) {
+                io.err().println("parsecache: " + command.tokenString(2) + ": numeric argument required");
+                return 1;
+            }
+        }
+        long lookups = cache.hits() + cache.misses();
+        io.out().println("entries " + cache.size() + "/" + cache.capacity());
+        io.out().println("hits " + cache.hits() + ", misses " + cache.misses() + ", invalidated " + cache.invalidations()
+                + String.format(" (%.1f%% hit rate)", lookups == 0 ? 0.0 : 100.0 * cache.hits() / lookups));
+        return 0;
+    }
+}
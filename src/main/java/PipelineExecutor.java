@@ -0,0 +1,435 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Runs a multi-stage pipeline. Consecutive external stages are started together with
+// ProcessBuilder.startPipeline so data between them flows through kernel pipes and never
+// touches the JVM heap. Builtin stages run in-process on their own threads, reading from
+// or writing straight into the neighbouring process streams. A stage with its own stdin
+// redirect reads that instead of the pipe, and what the stage before it writes is dropped.
+class PipelineExecutor {
+    private final Shell shell;
+    private final Builtins builtins;
+    private final PrintStream out;
+    private final PrintStream err;
+    // Each stage's NAME=value prefix, or null; the whole list is null when no stage has one
+    private final List<Map<String, String>> prefixes;
+
+    public PipelineExecutor(Shell shell) {
+        this(shell, null);
+    }
+
+    // Prefix assignments reach external stages' environments only; a builtin stage runs on
+    // its own thread alongside the others and sees the shell's variables as they are
+    public PipelineExecutor(Shell shell, List<Map<String, String>> prefixes) {
+        this.shell = shell;
+        this.prefixes = prefixes;
+        this.builtins = shell.builtins();
+        this.out = shell.out();
+        this.err = shell.err();
+    }
+
+    // A run of stages executed the same way: either external processes or a single in-process stage
+    private static class Group {
+        final List<CommandLine> stages = new ArrayList<>();
+        // The file each external stage runs
+        final List<String> executables = new ArrayList<>();
+        // Where stages starts in the pipeline
+        int offset;
+        final boolean external;
+        List<Process> processes = List.of();
+        List<Thread> pumps = new ArrayList<>();
+        InputStream in;
+        OutputStream out;
+        // The first stage's redirected stdin, if it has one
+        StdinSource stdin;
+
+        Group(boolean external) {
+            this.external = external;
+        }
+
+        CommandLine last() {
+            return stages.get(stages.size() - 1);
+        }
+    }
+
+    // A started pipeline: its processes, the threads running its in-process stages, every
+    // stage's status, and a future that completes with the pipeline's once all have finished
+    static class Execution {
+        final List<Process> processes = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        final List<CompletableFuture<Integer>> stages = new ArrayList<>();
+        CompletableFuture<Integer> completion;
+
+        // Once complete
+        int[] statuses() {
+            int[] statuses = new int[stages.size()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = stages.get(i).join();
+            }
+            return statuses;
+        }
+    }
+
+    // Every stage's status from the last run
+    private int[] statuses;
+
+    // Run in the foreground and wait for every stage, returning the last stage's status
+    public int run(Pipeline pipeline) throws InterruptedException {
+        Execution execution = start(pipeline, false);
+        if (execution == null) {
+            return 1;
+        }
+        long started = Stats.start();
+        for (Thread thread : execution.threads) {
+            thread.join();
+        }
+        int status = execution.completion.join();
+        Stats.record(Stats.Phase.WAIT, started);
+        statuses = execution.statuses();
+        out.flush();
+        return status;
+    }
+
+    // Start every stage without waiting. Background pipelines read /dev/null, not the
+    // terminal, unless redirected, and no thread is parked on their processes: completion
+    // hangs off Process.onExit().
+    public Execution start(Pipeline pipeline, boolean background) {
+        List<Group> groups = plan(pipeline);
+        Execution execution = new Execution();
+
+        if (!openInputs(groups)) {
+            closeInputs(groups);
+            return null;
+        }
+        // Start every external group first so builtin stages can be wired to their streams
+        for (int g = 0; g < groups.size(); g++) {
+            Group group = groups.get(g);
+            if (group.external && !startProcesses(groups, g, background)) {
+                destroyAll(groups);
+                closeInputs(groups);
+                return null;
+            }
+        }
+
+        List<CompletableFuture<Integer>> stages = execution.stages;
+        for (int g = 0; g < groups.size(); g++) {
+            Group group = groups.get(g);
+            if (group.external) {
+                for (Process process : group.processes) {
+                    stages.add(process.onExit().thenApply(Process::exitValue));
+                }
+                execution.processes.addAll(group.processes);
+                execution.threads.addAll(group.pumps);
+                continue;
+            }
+            wireBuiltin(groups, g);
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            stages.add(status);
+            execution.threads.add(Thread.ofVirtual().start(() -> status.complete(runInProcess(group))));
+        }
+
+        boolean pipefail = shell.pipefail();
+        execution.completion = CompletableFuture.allOf(stages.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> status(execution.statuses(), pipefail));
+        execution.completion.whenComplete((status, failure) -> closeInputs(groups));
+        return execution;
+    }
+
+    // The last stage's status; with pipefail, the last one that is not zero
+    private static int status(int[] statuses, boolean pipefail) {
+        if (pipefail) {
+            for (int i = statuses.length - 1; i >= 0; i--) {
+                if (statuses[i] != 0) {
+                    return statuses[i];
+                }
+            }
+        }
+        return statuses[statuses.length - 1];
+    }
+
+    public int[] statuses() {
+        return statuses;
+    }
+
+    // Open every stage's redirected stdin before anything starts. One that cannot be opened
+    // stops the whole pipeline, where bash would fail just that stage.
+    private boolean openInputs(List<Group> groups) {
+        for (Group group : groups) {
+            CommandLine first = group.stages.get(0);
+            if (first.getInput() == null) {
+                continue;
+            }
+            String command = first.getTokens().isEmpty() ? "" : first.getTokens().get(0);
+            group.stdin = shell.openStdin(command, first);
+            if (group.stdin == null) {
+                return false;
+            }
+            if (!group.external) {
+                try {
+                    group.in = group.stdin.stream();
+                } catch (IOException e) {
+                    err.println(command + ": " + e.getMessage());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void closeInputs(List<Group> groups) {
+        for (Group group : groups) {
+            closeQuietly(group.stdin);
+        }
+    }
+
+    private List<Group> plan(Pipeline pipeline) {
+        List<Group> groups = new ArrayList<>();
+        Group current = null;
+        List<CommandLine> stages = pipeline.getStages();
+        for (int s = 0; s < stages.size(); s++) {
+            CommandLine stage = stages.get(s);
+            List<String> tokens = stage.getTokens();
+            String executable = tokens.isEmpty() || builtins.contains(tokens.get(0))
+                    ? null
+                    : shell.findCommand(tokens.get(0));
+            boolean external = executable != null;
+
+            // A redirected stdout ends a run of processes, since the next stage reads nothing,
+            // and so does a stage with its own stdin
+            boolean joinable = current != null && current.external && external
+                    && !current.last().redirectsOutput() && stage.getInput() == null;
+            if (!joinable) {
+                current = new Group(external);
+                current.offset = s;
+                groups.add(current);
+            }
+            current.stages.add(stage);
+            if (external) {
+                current.executables.add(executable);
+            }
+        }
+        return groups;
+    }
+
+    private boolean startProcesses(List<Group> groups, int index, boolean background) {
+        Group group = groups.get(index);
+        Group previous = index > 0 ? groups.get(index - 1) : null;
+        Group next = index + 1 < groups.size() ? groups.get(index + 1) : null;
+
+        List<ProcessBuilder> builders = new ArrayList<>();
+        boolean[] sessionOut = new boolean[group.stages.size()];
+        boolean[] sessionErr = new boolean[group.stages.size()];
+        boolean[] outputToError = new boolean[group.stages.size()];
+        for (int i = 0; i < group.stages.size(); i++) {
+            CommandLine stage = group.stages.get(i);
+            ProcessBuilder pb = shell.newProcessBuilder(group.executables.get(i), stage.getTokens());
+            if (prefixes != null && prefixes.get(group.offset + i) != null) {
+                pb.environment().putAll(prefixes.get(group.offset + i));
+            }
+
+            if (i == 0) {
+                if (group.stdin != null) {
+                    pb.redirectInput(group.stdin.redirect());
+                } else if (previous == null) {
+                    pb.redirectInput(background ? ProcessBuilder.Redirect.from(new File("/dev/null")) : shell.stdinRedirect());
+                } else if (previous.last().redirectsOutput()) {
+                    pb.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+                }
+                // Otherwise PIPE: a builtin stage writes into this process's stdin
+            }
+
+            if (stage.getOutputFile() != null) {
+                String path = stage.resolvedOutputFile(shell.currentDirectory());
+                if (!prepareTarget(stage.getTokens().get(0), stage.getOutputFile(), path)) {
+                    return false;
+                }
+                File target = new File(path);
+                pb.redirectOutput(stage.isAppendOutput()
+                        ? ProcessBuilder.Redirect.appendTo(target)
+                        : ProcessBuilder.Redirect.to(target));
+            } else if (i == group.stages.size() - 1 && next == null) {
+                pb.redirectOutput(shell.stdoutRedirect());
+                sessionOut[i] = true;
+            } else if (i == group.stages.size() - 1 && next.stdin != null) {
+                pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            }
+
+            if (stage.getErrorFile() != null) {
+                String path = stage.resolvedErrorFile(shell.currentDirectory());
+                if (!prepareTarget(stage.getTokens().get(0), stage.getErrorFile(), path)) {
+                    return false;
+                }
+                File target = new File(path);
+                pb.redirectError(stage.isAppendError()
+                        ? ProcessBuilder.Redirect.appendTo(target)
+                        : ProcessBuilder.Redirect.to(target));
+            } else if (stage.duplicate() == CommandLine.Duplicate.NONE) {
+                pb.redirectError(shell.stderrRedirect());
+                sessionErr[i] = true;
+            }
+            // 2>&1 merges stderr into stdout, wherever that goes; >&2 points stdout at stderr's
+            // target first, copying it to the session's stderr when there is no file
+            pb.redirectErrorStream(stage.duplicate() != CommandLine.Duplicate.NONE);
+            if (stage.duplicate() == CommandLine.Duplicate.OUTPUT_TO_ERROR) {
+                if (stage.getErrorFile() != null) {
+                    pb.redirectOutput(pb.redirectError());
+                } else {
+                    pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
+                    outputToError[i] = true;
+                }
+            }
+            builders.add(pb);
+        }
+
+        try {
+            long started = Stats.start();
+            group.processes = shell.start(builders);
+            Stats.record(Stats.Phase.SPAWN, started);
+        } catch (IOException e) {
+            // startPipeline does not say which stage failed; its message names the program started
+            String command = group.stages.get(0).getTokens().get(0);
+            for (int i = 0; i < group.stages.size(); i++) {
+                if (String.valueOf(e.getMessage()).contains("\"" + builders.get(i).command().get(0) + "\"")) {
+                    command = group.stages.get(i).getTokens().get(0);
+                    shell.commandHash().forget(command);
+                }
+            }
+            err.println(command + ": " + Shell.spawnError(e));
+            return false;
+        }
+        if (group.stdin != null) {
+            try {
+                group.stdin.started(group.processes.get(0));
+            } catch (IOException ignored) {
+                // Only a spill file left behind; closing the source tries again
+            }
+        }
+        for (int i = 0; i < group.processes.size(); i++) {
+            group.pumps.addAll(shell.forward(group.processes.get(i), sessionOut[i], sessionErr[i]));
+            if (outputToError[i]) {
+                group.pumps.add(Shell.pump(group.processes.get(i).getInputStream(), err));
+            }
+        }
+        return true;
+    }
+
+    private void wireBuiltin(List<Group> groups, int index) {
+        Group group = groups.get(index);
+        Group previous = index > 0 ? groups.get(index - 1) : null;
+        Group next = index + 1 < groups.size() ? groups.get(index + 1) : null;
+
+        // A redirected stdin was opened up front; a builtin after a builtin has its input
+        // set by the upstream stage below
+        if (group.stdin == null && (previous == null || previous.last().redirectsOutput())) {
+            group.in = InputStream.nullInputStream();
+        } else if (group.stdin == null && previous.external) {
+            group.in = previous.processes.get(previous.processes.size() - 1).getInputStream();
+        }
+
+        if (group.last().redirectsOutput()) {
+            group.out = null;
+        } else if (next == null) {
+            group.out = out;
+        } else if (next.stdin != null) {
+            group.out = OutputStream.nullOutputStream();
+        } else if (next.external) {
+            group.out = next.processes.get(0).getOutputStream();
+        } else {
+            PipedInputStream sink = new PipedInputStream(64 * 1024);
+            try {
+                group.out = new PipedOutputStream(sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            next.in = sink;
+        }
+    }
+
+    private int runInProcess(Group group) {
+        CommandLine stage = group.last();
+        List<String> tokens = stage.getTokens();
+        String command = tokens.isEmpty() ? "" : tokens.get(0);
+        OutputSink stdout = null;
+        OutputSink stderr = null;
+        // The redirect target being opened, for the message if it cannot be
+        String opening = null;
+        int status = 0;
+        try {
+            // With 2>&1 or >&2 one sink serves both streams
+            if (stage.duplicate() != CommandLine.Duplicate.ERROR_TO_OUTPUT) {
+                opening = stage.getErrorFile();
+                stderr = opening != null
+                        ? shell.redirects().open(stage.resolvedErrorFile(shell.currentDirectory()), stage.isAppendError())
+                        : OutputSink.of(err);
+            }
+            if (stage.duplicate() != CommandLine.Duplicate.OUTPUT_TO_ERROR) {
+                opening = stage.getOutputFile();
+                stdout = opening != null
+                        ? shell.redirects().open(stage.resolvedOutputFile(shell.currentDirectory()), stage.isAppendOutput())
+                        : OutputSink.of(group.out);
+            }
+            opening = null;
+            if (stderr == null) {
+                stderr = stdout;
+            } else if (stdout == null) {
+                stdout = stderr;
+            }
+
+            Builtin builtin = tokens.isEmpty() ? null : builtins.get(command);
+            if (builtin != null) {
+                // cd, export and the like change only a copy of the session, as in bash's subshell
+                Shell target = builtins.affectsShell(command) ? shell.stageCopy() : shell;
+                long started = Stats.start();
+                status = Builtins.run(builtin, command, stage, new IoContext(target, group.in, stdout, stderr));
+                Stats.record(Stats.Phase.BUILTIN, started);
+            } else if (!tokens.isEmpty()) {
+                status = shell.notFound(command, stderr);
+            }
+        } catch (IOException e) {
+            // Either a redirect target could not be opened, or the downstream reader went
+            // away; like SIGPIPE, the latter just stops the stage
+            if (opening != null) {
+                err.println(command + ": " + opening + ": No such file or directory");
+            }
+            status = 1;
+        } finally {
+            closeQuietly(stdout);
+            if (stderr != stdout) {
+                closeQuietly(stderr);
+            }
+            closeQuietly(group.in);
+            if (group.out != out) {
+                closeQuietly(group.out);
+            }
+        }
+        return status;
+    }
+
+    private boolean prepareTarget(String command, String fileName, String path) {
+        try {
+            shell.redirects().prepare(path);
+            return true;
+        } catch (IOException e) {
+            err.println(command + ": " + fileName + ": No such file or directory");
+            return false;
+        }
+    }
+
+    private static void destroyAll(List<Group> groups) {
+        for (Group group : groups) {
+            for (Process process : group.processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+}
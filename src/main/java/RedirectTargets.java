@@ -0,0 +1,222 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// The redirect targets of one session. Each parent directory is checked or created once,
+// not before every command, and a `>>` target written by builtins keeps its channel open
+// across commands, so a loop appending to a log costs one stat per line instead of a
+// directory check, an open and a close.
+//
+// A held channel is checked against the path on every reuse (same file key), so a rotated
+// or deleted log is opened afresh. Held channels are closed on cd, when the session ends,
+// and after IDLE_TIMEOUT_MILLIS without use; a channel still in use by a running command
+// is closed when that command lets go of it. Over NFS other hosts see appended data once
+// the channel closes, which is why the timeout is short.
+class RedirectTargets implements Closeable {
+    static final long IDLE_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_HELD = 16;
+    private static final int MAX_DIRECTORIES = 4096;
+    // One daemon thread sweeps the idle channels of every session
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("redirect-sweeper").daemon().factory());
+
+    // An append channel and who is using it; guarded by the owning RedirectTargets
+    private final class Held implements Closeable {
+        final FileChannel channel;
+        final Object fileKey;
+        long lastUsed;
+        int users;
+        boolean retired;
+
+        Held(FileChannel channel, Object fileKey) {
+            this.channel = channel;
+            this.fileKey = fileKey;
+            this.lastUsed = System.nanoTime();
+        }
+
+        // Called when a borrowing sink closes
+        @Override
+        public void close() throws IOException {
+            synchronized (RedirectTargets.this) {
+                users--;
+                lastUsed = System.nanoTime();
+                if (retired && users == 0) {
+                    channel.close();
+                }
+            }
+        }
+
+        void retire() throws IOException {
+            retired = true;
+            if (users == 0) {
+                channel.close();
+            }
+        }
+    }
+
+    private final Set<Path> directories = new HashSet<>();
+    private final LinkedHashMap<Path, Held> held = new LinkedHashMap<>(16, 0.75f, true);
+    private ScheduledFuture<?> sweep;
+
+    // Open a target for `>`/`2>` (truncate) or `>>`/`2>>` (append)
+    public OutputSink open(String path, boolean append) throws IOException {
+        long started = Stats.start();
+        try {
+            Path target = Path.of(path);
+            if (!append) {
+                return OutputSink.of(openChannel(target, StandardOpenOption.TRUNCATE_EXISTING));
+            }
+            synchronized (this) {
+                Held entry = hold(target);
+                entry.users++;
+                return OutputSink.borrow(entry.channel, entry);
+            }
+        } finally {
+            Stats.record(Stats.Phase.REDIRECT, started);
+        }
+    }
+
+    // Make sure a target's parent directory exists, for a child process that opens it itself
+    public Path prepare(String path) throws IOException {
+        long started = Stats.start();
+        try {
+            Path target = Path.of(path);
+            ensureParent(target);
+            return target;
+        } finally {
+            Stats.record(Stats.Phase.REDIRECT, started);
+        }
+    }
+
+    // Directories can vanish behind our back; after a failed open, check them all again
+    public synchronized void forgetDirectories() {
+        directories.clear();
+    }
+
+    // Close every held channel; on cd and when the session ends
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Held entry : held.values()) {
+            try {
+                entry.retire();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        held.clear();
+        stopSweeping();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Held hold(Path target) throws IOException {
+        Held entry = held.get(target);
+        if (entry != null) {
+            Object fileKey = currentFileKey(target);
+            if (!entry.retired && fileKey != null && fileKey.equals(entry.fileKey)) {
+                return entry;
+            }
+            held.remove(target);
+            entry.retire();
+        }
+
+        FileChannel channel = openChannel(target, StandardOpenOption.APPEND);
+        entry = new Held(channel, currentFileKey(target));
+        held.put(target, entry);
+        if (held.size() > MAX_HELD) {
+            Iterator<Held> eldest = held.values().iterator();
+            eldest.next().retire();
+            eldest.remove();
+        }
+        if (sweep == null) {
+            sweep = SWEEPER.scheduleWithFixedDelay(this::closeIdle, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2,
+                    TimeUnit.MILLISECONDS);
+        }
+        return entry;
+    }
+
+    private synchronized void closeIdle() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+        Iterator<Held> entries = held.values().iterator();
+        while (entries.hasNext()) {
+            Held entry = entries.next();
+            if (entry.users == 0 && entry.lastUsed - idleSince < 0) {
+                entries.remove();
+                try {
+                    entry.retire();
+                } catch (IOException ignored) {}
+            }
+        }
+        if (held.isEmpty()) {
+            stopSweeping();
+        }
+    }
+
+    private void stopSweeping() {
+        if (sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+    }
+
+    private FileChannel openChannel(Path target, StandardOpenOption mode) throws IOException {
+        ensureParent(target);
+        try {
+            return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        } catch (NoSuchFileException e) {
+            // The parent was removed since we last saw it: create it again, once
+            Path parent = target.getParent();
+            if (parent == null || !forget(parent)) {
+                throw e;
+            }
+            ensureParent(target);
+            return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        }
+    }
+
+    // Create a target's missing parent directories, as the shell always has
+    private void ensureParent(Path target) throws IOException {
+        Path parent = target.getParent();
+        if (parent == null) {
+            return;
+        }
+        synchronized (this) {
+            if (directories.contains(parent)) {
+                return;
+            }
+        }
+        if (!Files.isDirectory(parent)) {
+            Files.createDirectories(parent);
+        }
+        synchronized (this) {
+            if (directories.size() >= MAX_DIRECTORIES) {
+                directories.clear();
+            }
+            directories.add(parent);
+        }
+    }
+
+    private synchronized boolean forget(Path directory) {
+        return directories.remove(directory);
+    }
+
+    private static Object currentFileKey(Path target) {
+        try {
+            return Files.readAttributes(target, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.util.*;
+
+// A parsed program: what ScriptParser builds and Interpreter walks. Leaves are pipelines
+// exactly as LineParser produced them; nothing is re-tokenized when a node runs again.
+sealed interface Node permits Node.Simple, Node.Sequence, Node.AndOr, Node.If, Node.While, Node.For,
+        Node.Group, Node.FunctionDefinition {
+
+    record Simple(Pipeline pipeline) implements Node {}
+
+    // Commands separated by ';', '&' or newlines, run one after the other
+    record Sequence(List<Node> nodes) implements Node {}
+
+    // left && right, or left || right
+    record AndOr(Node left, boolean and, Node right) implements Node {}
+
+    // if/elif conditions with their bodies in step; otherwise is null without an else
+    record If(List<Node> conditions, List<Node> bodies, Node otherwise) implements Node {}
+
+    // while, or until when `until` is set
+    record While(Node condition, boolean until, Node body) implements Node {}
+
+    // The words still need expanding, on every run of the loop
+    record For(String name, Pipeline words, Node body) implements Node {}
+
+    record Group(Node body) implements Node {}
+
+    record FunctionDefinition(String name, Node body) implements Node {}
+}
+
+// Control flow on top of LineParser. LineParser splits the text into pipelines joined by
+// ';', newline, '&', '&&' and '||', and marks the unquoted reserved words at the start of
+// each; this builds if/elif/else, for, while/until, { } groups and function definitions
+// out of that stream by recursive descent. As in sh, a keyword counts only where a
+// command could start, so `echo done` is an ordinary command.
+//
+// Compound commands cannot be piped, redirected or put in the background as a whole.
+class ScriptParser {
+    // The text ended inside an open construct; the caller can read another line and retry.
+    // Inside a here-document, the lines up to its delimiter are what it needs.
+    static class Incomplete extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        // Only the parser that threw it reads it back; it is never serialized
+        private final transient LineParser.HereDocument hereDocument;
+
+        Incomplete() {
+            this(null);
+        }
+
+        Incomplete(LineParser.HereDocument hereDocument) {
+            super("syntax error: unexpected end of file");
+            this.hereDocument = hereDocument;
+        }
+
+        // The here-document still waiting for its delimiter, or null
+        LineParser.HereDocument hereDocument() {
+            return hereDocument;
+        }
+    }
+
+    private static final Set<String> TERMINATORS = Set.of("then", "elif", "else", "fi", "do", "done", "}");
+
+    private final LineParser lines = new LineParser();
+
+    // The pipeline being parsed, and how many of its leading words are used up
+    private List<Pipeline> items;
+    private int index;
+    private int skip;
+    // How the last command consumed was joined to the next
+    private Pipeline.Next next;
+
+    // Throws Incomplete for unfinished input and IllegalArgumentException for a syntax error
+    public Node parse(String text) {
+        items = lines.parseLine(text);
+        if (lines.unfinishedHereDocument() != null) {
+            items = null;
+            throw new Incomplete(lines.unfinishedHereDocument());
+        }
+        index = 0;
+        skip = 0;
+        try {
+            Node program = list();
+            if (!atEnd()) {
+                throw unexpected(word());
+            }
+            return program;
+        } finally {
+            items = null;
+        }
+    }
+
+    public LineParser lineParser() {
+        return lines;
+    }
+
+    // Commands up to the end of the text or a keyword that closes the enclosing construct
+    private Node list() {
+        List<Node> nodes = new ArrayList<>(2);
+        while (!atEnd()) {
+            String keyword = keyword();
+            if (keyword != null && TERMINATORS.contains(keyword)) {
+                break;
+            }
+            nodes.add(andOr());
+        }
+        return nodes.size() == 1 ? nodes.get(0) : new Node.Sequence(List.copyOf(nodes));
+    }
+
+    // A list that must hold at least one command, as in every compound command
+    private Node body() {
+        Node body = list();
+        if (body instanceof Node.Sequence sequence && sequence.nodes().isEmpty()) {
+            throw atEnd() ? new Incomplete() : unexpected(word());
+        }
+        return body;
+    }
+
+    private Node andOr() {
+        Node node = command();
+        while (next != Pipeline.Next.SEQUENCE) {
+            boolean and = next == Pipeline.Next.AND;
+            if (atEnd()) {
+                throw new Incomplete();
+            }
+            node = new Node.AndOr(node, and, command());
+        }
+        return node;
+    }
+
+    private Node command() {
+        String keyword = keyword();
+        if (keyword == null || keyword.equals("in")) {
+            return simple();
+        }
+        switch (keyword) {
+            case "if":
+                return ifClause();
+            case "for":
+                return forClause();
+            case "while":
+            case "until":
+                return whileClause(keyword.equals("until"));
+            case "{":
+                take();
+                requireSeparated("{");
+                Node body = body();
+                close("}");
+                return new Node.Group(body);
+            case "function":
+                take();
+                return function(functionName());
+            default:
+                if (keyword.endsWith("()")) {
+                    take();
+                    return function(keyword.substring(0, keyword.length() - 2));
+                }
+                throw unexpected(keyword);
+        }
+    }
+
+    private Node simple() {
+        Pipeline item = items.get(index);
+        // NAME () as two words starts a function definition
+        CommandLine first = item.getStages().get(0);
+        if (skip + 1 < first.size() && item.isKeyword(skip + 1) && first.tokenEquals(skip + 1, "()")) {
+            String name = first.tokenString(skip);
+            take();
+            take();
+            return function(name);
+        }
+        Pipeline pipeline = skip == 0 ? item : item.dropWords(skip);
+        List<CommandLine> stages = pipeline.getStages();
+        for (int i = 0; i < stages.size() && stages.size() > 1; i++) {
+            CommandLine stage = stages.get(i);
+            if (stage.isEmpty() && !stage.hasRedirects()) {
+                // A '|' at the very end continues on the next line
+                boolean trailing = i == stages.size() - 1 && index == items.size() - 1
+                        && !item.isBackground() && item.next() == Pipeline.Next.SEQUENCE;
+                throw trailing ? new Incomplete() : unexpected("|");
+            }
+        }
+        next = item.next();
+        index++;
+        skip = 0;
+        return new Node.Simple(pipeline);
+    }
+
+    private Node ifClause() {
+        List<Node> conditions = new ArrayList<>(2);
+        List<Node> bodies = new ArrayList<>(2);
+        Node otherwise = null;
+        take();
+        while (true) {
+            conditions.add(body());
+            expect("then");
+            bodies.add(body());
+            String keyword = keyword();
+            if ("elif".equals(keyword)) {
+                take();
+                continue;
+            }
+            if ("else".equals(keyword)) {
+                take();
+                requireSeparated("else");
+                otherwise = body();
+            }
+            break;
+        }
+        close("fi");
+        return new Node.If(List.copyOf(conditions), List.copyOf(bodies), otherwise);
+    }
+
+    private Node whileClause(boolean until) {
+        take();
+        Node condition = body();
+        expect("do");
+        Node body = body();
+        close("done");
+        return new Node.While(condition, until, body);
+    }
+
+    // for NAME in WORD...; do LIST; done
+    private Node forClause() {
+        take();
+        String name = word();
+        if (name == null || !isName(name)) {
+            throw name == null && atEnd() ? new Incomplete() : unexpected(name == null ? "newline" : name);
+        }
+        take();
+        if (!"in".equals(keyword())) {
+            throw atEnd() ? new Incomplete() : unexpected(word() == null ? "newline" : word());
+        }
+        Pipeline item = items.get(index);
+        CommandLine header = item.getStages().get(0);
+        if (!item.isSingleCommand() || item.isBackground() || item.next() != Pipeline.Next.SEQUENCE) {
+            throw unexpected(separator(item));
+        }
+        if (header.hasRedirects()) {
+            throw unexpected(redirect(header));
+        }
+        Pipeline words = item.dropWords(skip + 1);
+        index++;
+        skip = 0;
+        expect("do");
+        Node body = body();
+        close("done");
+        return new Node.For(name, words, body);
+    }
+
+    private Node function(String name) {
+        if (!isName(name)) {
+            throw unexpected(name + "()");
+        }
+        if (atEnd()) {
+            throw new Incomplete();
+        }
+        // The body is any compound command, typically a { } group
+        String keyword = keyword();
+        if (keyword == null || !(keyword.equals("{") || keyword.equals("if") || keyword.equals("for")
+                || keyword.equals("while") || keyword.equals("until"))) {
+            throw unexpected(word());
+        }
+        Node body = command();
+        return new Node.FunctionDefinition(name, body);
+    }
+
+    // function NAME, or function NAME()
+    private String functionName() {
+        String name = word();
+        if (name == null) {
+            throw atEnd() ? new Incomplete() : unexpected("newline");
+        }
+        take();
+        if (name.endsWith("()")) {
+            return name.substring(0, name.length() - 2);
+        }
+        if ("()".equals(keyword())) {
+            take();
+        }
+        return name;
+    }
+
+    // The keyword must come next; it opens a list, so nothing may be chained onto it
+    private void expect(String keyword) {
+        if (atEnd()) {
+            throw new Incomplete();
+        }
+        if (!keyword.equals(keyword())) {
+            throw unexpected(word());
+        }
+        take();
+        requireSeparated(keyword);
+    }
+
+    // A closing keyword ends its pipeline; how that pipeline is joined applies to the construct
+    private void close(String keyword) {
+        if (atEnd()) {
+            throw new Incomplete();
+        }
+        if (!keyword.equals(keyword())) {
+            throw unexpected(word());
+        }
+        if (!take()) {
+            throw unexpected(items.get(index).getStages().get(0).tokenString(skip));
+        }
+    }
+
+    private void requireSeparated(String keyword) {
+        if (next != null && next != Pipeline.Next.SEQUENCE) {
+            throw unexpected(next == Pipeline.Next.AND ? "&&" : "||");
+        }
+    }
+
+    // Use up the current word. Returns true when that finished its pipeline, which then
+    // may not continue with a pipe, a redirect or '&'.
+    private boolean take() {
+        Pipeline item = items.get(index);
+        CommandLine first = item.getStages().get(0);
+        skip++;
+        next = null;
+        if (skip < first.size()) {
+            return false;
+        }
+        if (!item.isSingleCommand()) {
+            throw unexpected("|");
+        }
+        if (first.hasRedirects()) {
+            throw unexpected(redirect(first));
+        }
+        if (item.isBackground()) {
+            throw unexpected("&");
+        }
+        next = item.next();
+        index++;
+        skip = 0;
+        return true;
+    }
+
+    // The current word if it is an unquoted reserved word, else null
+    private String keyword() {
+        if (atEnd()) {
+            return null;
+        }
+        Pipeline item = items.get(index);
+        CommandLine first = item.getStages().get(0);
+        return skip < first.size() && item.isKeyword(skip) ? first.tokenString(skip) : null;
+    }
+
+    private String word() {
+        if (atEnd()) {
+            return null;
+        }
+        CommandLine first = items.get(index).getStages().get(0);
+        return skip < first.size() ? first.tokenString(skip) : null;
+    }
+
+    private boolean atEnd() {
+        return index >= items.size();
+    }
+
+    private static String separator(Pipeline item) {
+        if (!item.isSingleCommand()) {
+            return "|";
+        }
+        if (item.isBackground()) {
+            return "&";
+        }
+        return item.next() == Pipeline.Next.AND ? "&&" : "||";
+    }
+
+    private static String redirect(CommandLine command) {
+        if (command.getInput() == null) {
+            return ">";
+        }
+        return switch (command.getInput().kind()) {
+            case FILE -> "<";
+            case HERE_STRING -> "<<<";
+            case HERE_DOCUMENT -> "<<";
+        };
+    }
+
+    private static IllegalArgumentException unexpected(String token) {
+        return new IllegalArgumentException("syntax error near unexpected token `" + token + "'");
+    }
+
+    static boolean isName(String name) {
+        if (name.isEmpty() || (name.charAt(0) >= '0' && name.charAt(0) <= '9')) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
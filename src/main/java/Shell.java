@@ -0,0 +1,1115 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+
+// One interactive session: its working directory, builtin table, command hash and stdio.
+// Main runs a single session on the terminal; ShellServer runs one per connected client.
+class Shell {
+    private static final int BATCH_BUFFER_SIZE = 1 << 16;
+    // What the JDK searches when it starts a bare name: this JVM's own PATH
+    private static final String JVM_PATH = System.getenv("PATH");
+    // A shell whose `exec -a` starts a file under another name, or null
+    private static final String EXEC_WRAPPER = findExecWrapper();
+
+    private final InputStream in;
+    private PrintStream out;
+    private final PrintStream err;
+    private final ShellEnvironment environment;
+    private final boolean inheritStdio;
+    private final boolean interactive;
+    private final List<String> args;
+
+    private final Builtins builtins;
+    private CommandHash commandHash;
+    // A subshell uses its parent's hash until it assigns PATH itself; -1 once it has its own
+    private long sharedPathVersion = -1;
+    private final JobTable jobs = new JobTable();
+    private final Completer completer;
+    // Interactive sessions only, as in bash; null when there is no history file
+    private final HistoryStore history;
+    private final ParseCache parseCache;
+    private final Interpreter interpreter = new Interpreter(this);
+    private final RedirectTargets redirects = new RedirectTargets();
+    private String currentDirectory;
+    // What children start in; made once per cd, not per spawn
+    private File directory;
+    // pushd's stack, without the current directory that heads it
+    private final Deque<String> directoryStack = new ArrayDeque<>();
+    private final Expander expander = new Expander(this);
+    // $1, $2, ...: the script's arguments, or a function's while it runs
+    private List<String> positional;
+    // Builtins writing to the session's own stdout and stderr reuse these, created on first use
+    private OutputSink outSink;
+    private OutputSink errSink;
+    private IoContext sessionIo;
+    private boolean exitRequested;
+    private int exitStatus;
+    // set -e and set -o pipefail
+    private boolean errexit;
+    private boolean pipefail;
+    // Null unless SHELL_EVENTS is set
+    private final EventLog events;
+    // Every stage's status for the pipeline just run, or null after a single command
+    private int[] pipeStatus;
+
+    // A session bound to this JVM's own terminal and environment
+    public Shell(List<String> args) {
+        this(System.in, System.out, System.err, System.getenv(), System.getProperty("user.dir"), args,
+                true, stdinIsTerminal());
+        if (!interactive) {
+            // Nobody is watching: buffer stdout and flush only before children write to it
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BATCH_BUFFER_SIZE), false);
+        }
+    }
+
+    public Shell(InputStream in, PrintStream out, PrintStream err, Map<String, String> environment,
+                 String currentDirectory, List<String> args, boolean inheritStdio, boolean interactive) {
+        this(in, out, err, new ShellEnvironment(environment), environment, currentDirectory, args, inheritStdio,
+                interactive);
+        // As in bash, PWD starts out naming the directory the session starts in
+        if (!currentDirectory.equals(this.environment.get("PWD"))) {
+            this.environment.set("PWD", currentDirectory);
+        }
+    }
+
+    private Shell(InputStream in, PrintStream out, PrintStream err, ShellEnvironment environment,
+                  Map<String, String> settings, String currentDirectory, List<String> args, boolean inheritStdio,
+                  boolean interactive) {
+        this.in = in;
+        this.out = out;
+        this.interactive = interactive;
+        this.err = err;
+        this.environment = environment;
+        this.currentDirectory = currentDirectory;
+        this.directory = new File(currentDirectory);
+        this.args = args;
+        this.inheritStdio = inheritStdio;
+
+        builtins = Builtins.standard();
+        // Shared by `type` and external execution so the two never disagree
+        commandHash = new CommandHash(() -> environment.get("PATH"), environment::pathVersion);
+        completer = new Completer(builtins, () -> environment.get("PATH"));
+        history = interactive ? HistoryStore.open(settings) : null;
+        // Its parser is reused for every line this session reads
+        parseCache = new ParseCache(new ScriptParser(), ParseCache.configuredCapacity(settings));
+        events = EventLog.open(settings, inheritStdio, err);
+        // A script file's arguments follow its name; `-c text` is followed by $0, then the rest
+        int first = !args.isEmpty() && args.get(0).equals("-c") ? 3 : 1;
+        positional = args.size() > first ? List.copyOf(args.subList(first, args.size())) : List.of();
+    }
+
+    // A subshell: its own variables, directory, functions and jobs, no terminal, and the
+    // parent's read-only parts. The builtin table, parse cache and completer are shared
+    // rather than built again for every $(...), which runs while its parent waits.
+    private Shell(Shell parent, List<String> args, PrintStream out) {
+        this.in = InputStream.nullInputStream();
+        this.out = out;
+        this.interactive = false;
+        this.err = parent.err;
+        this.environment = parent.environment.copy();
+        this.currentDirectory = parent.currentDirectory;
+        this.directory = parent.directory;
+        this.args = args;
+        this.inheritStdio = false;
+
+        builtins = parent.builtins;
+        commandHash = parent.commandHash;
+        sharedPathVersion = environment.pathVersion();
+        completer = parent.completer;
+        history = null;
+        parseCache = parent.parseCache;
+        events = null;
+        positional = parent.positional;
+        pipefail = parent.pipefail;
+        directoryStack.addAll(parent.directoryStack);
+        interpreter.inherit(parent.interpreter);
+    }
+
+    public PrintStream out() {
+        return out;
+    }
+
+    public PrintStream err() {
+        return err;
+    }
+
+    public Builtins builtins() {
+        return builtins;
+    }
+
+    public CommandHash commandHash() {
+        if (sharedPathVersion >= 0 && environment.pathVersion() != sharedPathVersion) {
+            commandHash = new CommandHash(() -> environment.get("PATH"), environment::pathVersion);
+            sharedPathVersion = -1;
+        }
+        return commandHash;
+    }
+
+    public JobTable jobs() {
+        return jobs;
+    }
+
+    public HistoryStore history() {
+        return history;
+    }
+
+    public ParseCache parseCache() {
+        return parseCache;
+    }
+
+    public RedirectTargets redirects() {
+        return redirects;
+    }
+
+    public Interpreter interpreter() {
+        return interpreter;
+    }
+
+    public List<String> positional() {
+        return positional;
+    }
+
+    public void setPositional(List<String> arguments) {
+        positional = arguments;
+    }
+
+    public String currentDirectory() {
+        return currentDirectory;
+    }
+
+    public void setCurrentDirectory(String directory) {
+        environment.set("OLDPWD", currentDirectory);
+        environment.set("PWD", directory);
+        currentDirectory = directory;
+        this.directory = new File(directory);
+        // Nothing stays open in a directory the session has left
+        closeRedirects();
+    }
+
+    public Deque<String> directoryStack() {
+        return directoryStack;
+    }
+
+    private void closeRedirects() {
+        try {
+            redirects.close();
+        } catch (IOException ignored) {
+            // Appends are written through as they happen; a failed close loses nothing
+        }
+    }
+
+    public void requestExit(int status) {
+        exitRequested = true;
+        exitStatus = status;
+    }
+
+    public boolean exitRequested() {
+        return exitRequested;
+    }
+
+    public boolean errexit() {
+        return errexit;
+    }
+
+    public void setErrexit(boolean errexit) {
+        this.errexit = errexit;
+    }
+
+    public boolean pipefail() {
+        return pipefail;
+    }
+
+    public void setPipefail(boolean pipefail) {
+        this.pipefail = pipefail;
+    }
+
+    // What an in-process builtin reads when its stdin is not redirected or piped
+    public InputStream builtinStdin() {
+        return inheritStdio ? in : InputStream.nullInputStream();
+    }
+
+    public ShellEnvironment environment() {
+        return environment;
+    }
+
+    public String getenv(String name) {
+        return environment.get(name);
+    }
+
+    // What $NAME expands to, exported or not
+    public String getVariable(String name) {
+        return environment.get(name);
+    }
+
+    // NAME=value: an exported variable stays exported, anything else is a shell variable
+    public void setVariable(String name, String value) {
+        environment.set(name, value);
+    }
+
+    // A copy of this session for $(...): same variables and directory, stdout captured,
+    // no terminal. Nothing it changes comes back.
+    public Shell subshell(String command, PrintStream captured) {
+        // As in bash, $(...) keeps pipefail but not set -e
+        return new Shell(this, List.of("-c", command), captured);
+    }
+
+    // A copy for a builtin such as cd or export run as a pipeline stage or parallel job,
+    // which bash runs in a subshell: it lists this session's state, and what it changes
+    // is lost with it
+    public Shell stageCopy() {
+        Shell copy = new Shell(this, args, out);
+        copy.errexit = errexit;
+        copy.interpreter.inheritDepth(interpreter);
+        return copy;
+    }
+
+    // From JDK 22 System.console() exists even when redirected, so ask what fd 0 really is
+    static boolean stdinIsTerminal() {
+        if (System.console() == null) {
+            return false;
+        }
+        try {
+            String target = Files.readSymbolicLink(Path.of("/proc/self/fd/0")).toString();
+            return target.startsWith("/dev/pts/") || target.startsWith("/dev/tty");
+        } catch (IOException | UnsupportedOperationException e) {
+            return true;
+        }
+    }
+
+    // Redirect targets are relative to the session's directory, not the JVM's
+    public String resolvePath(String path) {
+        if (path == null || new File(path).isAbsolute()) {
+            return path;
+        }
+        return new File(currentDirectory, path).getPath();
+    }
+
+    // The absolute file a command name runs, or null. A name containing a slash is a path,
+    // relative to the session's directory, and skips the PATH search; anything else goes
+    // through the hash, which follows the session's PATH.
+    public String findCommand(String command) {
+        if (command.indexOf('/') >= 0) {
+            File file = new File(resolvePath(command));
+            return file.isFile() && file.canExecute() ? file.toPath().toAbsolutePath().normalize().toString() : null;
+        }
+        return commandHash().lookup(command);
+    }
+
+    private static String findExecWrapper() {
+        for (String candidate : List.of("/bin/bash", "/usr/bin/bash")) {
+            if (new File(candidate).canExecute()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // Why a command that findCommand did not find cannot run, in bash's words, with its
+    // status: 126 for a file that exists but cannot be executed, else 127
+    int notFound(String command, OutputSink errors) throws IOException {
+        File file = new File(resolvePath(command));
+        if (command.indexOf('/') < 0) {
+            errors.println(command + ": command not found");
+            return 127;
+        }
+        if (!file.exists()) {
+            errors.println(command + ": No such file or directory");
+            return 127;
+        }
+        errors.println(command + (file.isDirectory() ? ": Is a directory" : ": Permission denied"));
+        return 126;
+    }
+
+    // Runs the file findCommand resolved, with argv[0] as typed. The JDK looks a bare name up
+    // on the JVM's PATH, so while the session's differs the file is started through bash's
+    // `exec -a`; only without bash does the child see the path instead of the name.
+    public ProcessBuilder newProcessBuilder(String executable, List<String> argv) {
+        String name = argv.get(0);
+        List<String> command;
+        if (name.indexOf('/') >= 0 || Objects.equals(environment.get("PATH"), JVM_PATH)) {
+            command = argv;
+        } else if (EXEC_WRAPPER != null) {
+            command = new ArrayList<>(argv.size() + 4);
+            command.addAll(List.of(EXEC_WRAPPER, "-c", "exec -a \"$0\" \"$@\"", name, executable));
+            command.addAll(argv.subList(1, argv.size()));
+        } else {
+            command = new ArrayList<>(argv);
+            command.set(0, executable);
+        }
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(directory);
+        environment.applyTo(pb);
+        return pb;
+    }
+
+    // Start processes whose file redirects went through redirects.prepare. A directory can
+    // vanish after the session last checked it, which fails the open; then every directory
+    // is checked again, and the start tried once more.
+    List<Process> start(List<ProcessBuilder> builders) throws IOException {
+        try {
+            return ProcessBuilder.startPipeline(builders);
+        } catch (IOException e) {
+            if (!(e.getCause() instanceof FileNotFoundException)) {
+                throw e;
+            }
+            redirects.forgetDirectories();
+            for (ProcessBuilder pb : builders) {
+                for (ProcessBuilder.Redirect redirect : List.of(pb.redirectOutput(), pb.redirectError())) {
+                    if (redirect.file() != null && redirect.type() != ProcessBuilder.Redirect.Type.READ) {
+                        redirects.prepare(redirect.file().getPath());
+                    }
+                }
+            }
+            return ProcessBuilder.startPipeline(builders);
+        }
+    }
+
+    // The reason a start failed, without the JDK's "Cannot run program ..." preamble, and
+    // the status that goes with it: 127 if the file has vanished since the lookup, 1 for a
+    // redirect target that cannot be opened, else 126
+    static String spawnError(IOException e) {
+        if (e.getCause() instanceof FileNotFoundException) {
+            // "path (reason)", as bash words it
+            String message = String.valueOf(e.getCause().getMessage());
+            int reason = message.lastIndexOf(" (");
+            return reason > 0 && message.endsWith(")")
+                    ? message.substring(0, reason) + ": " + message.substring(reason + 2, message.length() - 1)
+                    : message;
+        }
+        String message = e.getMessage() != null ? e.getMessage() : e.toString();
+        int error = message.indexOf("error=");
+        int comma = error >= 0 ? message.indexOf(", ", error) : -1;
+        return comma >= 0 ? message.substring(comma + 2) : message;
+    }
+
+    static int spawnStatus(IOException e) {
+        if (e.getCause() instanceof FileNotFoundException) {
+            return 1;
+        }
+        return e.getMessage() != null && e.getMessage().contains("error=2,") ? 127 : 126;
+    }
+
+    // Unredirected child stdio: the terminal for a local session, the socket for a remote one
+    public ProcessBuilder.Redirect stdinRedirect() {
+        return inheritStdio ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.from(new File("/dev/null"));
+    }
+
+    public ProcessBuilder.Redirect stdoutRedirect() {
+        return inheritStdio ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE;
+    }
+
+    public ProcessBuilder.Redirect stderrRedirect() {
+        return inheritStdio ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.PIPE;
+    }
+
+    // Copy a remote session's child output back to the client; a no-op for local sessions
+    public List<Thread> forward(Process process, boolean stdout, boolean stderr) {
+        if (inheritStdio) {
+            return List.of();
+        }
+        List<Thread> pumps = new ArrayList<>(2);
+        if (stdout) {
+            pumps.add(pump(process.getInputStream(), out));
+        }
+        if (stderr) {
+            pumps.add(pump(process.getErrorStream(), err));
+        }
+        return pumps;
+    }
+
+    static Thread pump(InputStream from, PrintStream to) {
+        return Thread.ofVirtual().start(() -> {
+            try (from) {
+                from.transferTo(to);
+                to.flush();
+            } catch (IOException ignored) {}
+        });
+    }
+
+    // Run a program for a builtin, on the builtin's stdio: the session's own is handed to the
+    // child as for any command, anything else is copied through
+    int runProgram(String executable, List<String> argv, IoContext io) throws IOException {
+        boolean sessionIn = inheritStdio && io.in() == in;
+        boolean sessionOut = io.out() == outSink;
+        boolean sessionErr = io.err() == errSink;
+        ProcessBuilder pb = newProcessBuilder(executable, argv);
+        pb.redirectInput(sessionIn ? stdinRedirect() : ProcessBuilder.Redirect.PIPE);
+        pb.redirectOutput(sessionOut ? stdoutRedirect() : ProcessBuilder.Redirect.PIPE);
+        pb.redirectError(sessionErr ? stderrRedirect() : ProcessBuilder.Redirect.PIPE);
+        io.out().flush();
+        io.err().flush();
+        out.flush();
+        Process process;
+        try {
+            process = pb.start();
+        } catch (IOException e) {
+            commandHash().forget(argv.get(0));
+            io.err().println(argv.get(0) + ": " + spawnError(e));
+            return spawnStatus(e);
+        }
+        if (!sessionIn) {
+            Thread.ofVirtual().name("stdin-feeder").start(() -> {
+                try (OutputStream stdin = process.getOutputStream()) {
+                    io.in().transferTo(stdin);
+                } catch (IOException ignored) {
+                    // The child exited without reading it all
+                }
+            });
+        }
+        List<Thread> pumps = new ArrayList<>(forward(process, sessionOut, sessionErr));
+        if (!sessionOut) {
+            pumps.add(pump(process.getInputStream(), io.out()));
+        }
+        if (!sessionErr) {
+            pumps.add(pump(process.getErrorStream(), io.err()));
+        }
+        try {
+            int status = process.waitFor();
+            for (Thread pump : pumps) {
+                pump.join();
+            }
+            return status;
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            return 130;
+        }
+    }
+
+    private static Thread pump(InputStream from, OutputSink to) {
+        return Thread.ofVirtual().start(() -> {
+            byte[] buffer = new byte[8192];
+            try (from) {
+                int n;
+                while ((n = from.read(buffer)) > 0) {
+                    to.write(buffer, 0, n);
+                }
+            } catch (IOException ignored) {}
+        });
+    }
+
+    // Run the session until end of input or `exit`, returning the exit status.
+    // A script file or `-c` string, or stdin that is not a terminal, is compiled up front
+    // and run as a batch; otherwise this is the interactive read-eval loop.
+    public int run() throws Exception {
+        try {
+            if (args.size() >= 2 && args.get(0).equals("-c")) {
+                return runBatch(new BufferedReader(new StringReader(args.get(1))));
+            }
+            if (!args.isEmpty()) {
+                String script = args.get(0);
+                try (FileChannel channel = FileChannel.open(Path.of(resolvePath(script)))) {
+                    return runBatch(batchReader(channel));
+                } catch (NoSuchFileException e) {
+                    err.println(script + ": No such file or directory");
+                    return 127;
+                }
+            }
+            if (!interactive) {
+                // Whatever feeds a pipe may wait for one line's output before it sends the
+                // next, so a line is run as soon as its newline arrives rather than once a
+                // buffer fills: InputStreamReader stops at what one read returns
+                InputStream stdin = in == System.in ? new FileInputStream(FileDescriptor.in) : in;
+                return runBatch(new BufferedReader(new InputStreamReader(stdin, StandardCharsets.UTF_8), BATCH_BUFFER_SIZE));
+            }
+            // A local terminal gets the line editor; a remote client sends whole lines
+            return inheritStdio ? runLineEditor() : runInteractive();
+        } finally {
+            closeRedirects();
+            out.flush();
+            if (events != null) {
+                events.close();
+            }
+        }
+    }
+
+    private static BufferedReader batchReader(ReadableByteChannel channel) {
+        return new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), BATCH_BUFFER_SIZE), BATCH_BUFFER_SIZE);
+    }
+
+    // Output buffered so far goes out before a read that may block, for the same reason
+    private String nextLine(BufferedReader reader) throws IOException {
+        if (!reader.ready()) {
+            out.flush();
+        }
+        return reader.readLine();
+    }
+
+    private int runBatch(BufferedReader reader) throws Exception {
+        // Each command is parsed just before it runs, after the ones before it have run; a
+        // compound command spanning lines, or a here-document, is read up to its end first.
+        // Repeated lines come from the parse cache.
+        String line;
+        while ((line = nextLine(reader)) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            Node program = readProgram(line, prompt -> nextLine(reader));
+            if (program == null) {
+                break;
+            }
+            interpreter.run(program);
+            if (exitRequested) {
+                return exitStatus;
+            }
+        }
+        return interpreter.status();
+    }
+
+    // Throws ScriptParser.Incomplete when the text needs more lines
+    private Node parse(String text) {
+        long started = Stats.start();
+        try {
+            return parseCache.parse(text, environment.version());
+        } finally {
+            Stats.record(Stats.Phase.PARSE, started);
+        }
+    }
+
+    // The next complete command, reading continuation lines (with a "> " prompt when
+    // interactive) while a compound command or a here-document is open. Null at end of
+    // input; a line that does not parse is reported, sets $? to 2 and yields an empty program.
+    private Node readProgram(String first, LineSource source) throws Exception {
+        String text = first;
+        while (true) {
+            try {
+                Node program = parse(text);
+                recordHistory(text);
+                expander.startLine();
+                return program;
+            } catch (ScriptParser.Incomplete e) {
+                text = readMore(text, e, source);
+                if (text == null) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                err.println(e.getMessage());
+                recordHistory(text);
+                interpreter.setStatus(2);
+                return new Node.Sequence(List.of());
+            }
+        }
+    }
+
+    // The text followed by what may complete it: the next line, or a here-document's lines
+    // up to its delimiter, read in one go and kept as they are. Parsing again after every
+    // line of a long body would cost time quadratic in its length.
+    private String readMore(String text, ScriptParser.Incomplete incomplete, LineSource source) throws IOException {
+        LineParser.HereDocument document = incomplete.hereDocument();
+        StringBuilder more = new StringBuilder(text);
+        while (true) {
+            String line = source.readLine("> ");
+            if (line == null) {
+                if (document == null) {
+                    err.println(incomplete.getMessage());
+                    return null;
+                }
+                // As in bash, the end of input ends the body and the command still runs
+                err.println("warning: here-document delimited by end-of-file (wanted `" + document.delimiter() + "')");
+                return more.append('\n').append(document.delimiter()).toString();
+            }
+            if (document == null) {
+                line = line.trim();
+                return more.append('\n').append(line.startsWith("#") ? "" : line).toString();
+            }
+            more.append('\n').append(line);
+            if (document.isDelimiter(line)) {
+                return more.toString();
+            }
+        }
+    }
+
+    private interface LineSource {
+        String readLine(String prompt) throws IOException;
+    }
+
+    private int runLineEditor() throws Exception {
+        completer.startIndexing();
+        if (history != null) {
+            history.startIndexing();
+        }
+        try (LineEditor editor = new LineEditor(new Terminal(), out, completer, history)) {
+            String input;
+            while ((input = editor.readLine("$ ")) != null) {
+                input = expandHistory(input.trim());
+                if (input != null && !input.isEmpty()) {
+                    Node program = readProgram(input, editor::readLine);
+                    if (program == null) {
+                        break;
+                    }
+                    interpreter.run(program);
+                    if (exitRequested) {
+                        return exitStatus;
+                    }
+                }
+                jobs.reportFinished(out);
+            }
+        }
+        return interpreter.status();
+    }
+
+    private int runInteractive() throws Exception {
+        completer.startIndexing();
+        out.print("$ ");
+        out.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String input;
+        while ((input = reader.readLine()) != null) {
+            // Handle tab completion before trimming the input
+            if (input.contains("\t")) {
+                String[] parts = input.split("\t", 2);
+                String partialCommand = parts[0].trim();
+                String completedCommand = autocomplete(partialCommand, input.contains("\t\t"));
+                if (completedCommand != null) {
+                    // Print only the completed command without the prompt
+                    out.print(completedCommand);
+                    out.flush();
+                    continue;
+                }
+            }
+
+            // Now trim the input for normal command processing
+            input = expandHistory(input.trim());
+
+            if (input != null && !input.isEmpty()) {
+                // Parse the command, reading more lines while a compound command is open, then run it
+                Node program = readProgram(input, prompt -> {
+                    out.print(prompt);
+                    out.flush();
+                    return reader.readLine();
+                });
+                if (program == null) {
+                    break;
+                }
+                interpreter.run(program);
+                if (exitRequested) {
+                    return exitStatus;
+                }
+            }
+
+            jobs.reportFinished(out);
+            out.print("$ ");
+            out.flush();
+        }
+        return interpreter.status();
+    }
+
+    // A command made only of NAME=value words sets variables and runs nothing
+    private boolean assign(Pipeline pipeline) {
+        CommandLine command = pipeline.getStages().get(0);
+        int assignments = Expander.assignmentCount(command);
+        if (!pipeline.isSingleCommand() || assignments == 0 || assignments < command.size()) {
+            return false;
+        }
+        for (int i = 0; i < assignments; i++) {
+            setVariable(Expander.assignmentName(command, i), expander.assignmentValue(command, i));
+        }
+        return true;
+    }
+
+    // Apply !!, !n and friends; an expanded line is echoed, as bash does, and a failed
+    // expansion discards the line
+    private String expandHistory(String input) {
+        if (history == null) {
+            return input;
+        }
+        try {
+            String expanded = history.expand(input);
+            if (!expanded.equals(input)) {
+                out.println(expanded);
+            }
+            return expanded;
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return null;
+        } catch (IOException e) {
+            return input;
+        }
+    }
+
+    // Lines are recorded once they parse; an immediate repeat is not recorded twice
+    private void recordHistory(String text) {
+        if (history == null) {
+            return;
+        }
+        // A command read over several lines is kept as one
+        String input = text.replace("\n", "; ");
+        try {
+            int size = history.size();
+            if (size == 0 || !history.get(size - 1).equals(input)) {
+                history.append(input);
+            }
+        } catch (IOException e) {
+            err.println("history: " + e.getMessage());
+        }
+    }
+
+    // The NAME=value words before each stage's command name, expanded, or null for a stage
+    // without any. Null when no stage has them.
+    private List<Map<String, String>> prefixAssignments(Pipeline pipeline) {
+        List<Map<String, String>> prefixes = null;
+        List<CommandLine> stages = pipeline.getStages();
+        for (int s = 0; s < stages.size(); s++) {
+            CommandLine command = stages.get(s);
+            int assignments = Expander.assignmentCount(command);
+            if (assignments == 0) {
+                continue;
+            }
+            if (prefixes == null) {
+                prefixes = new ArrayList<>(Collections.nCopies(stages.size(), null));
+            }
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < assignments; i++) {
+                values.put(Expander.assignmentName(command, i), expander.assignmentValue(command, i));
+            }
+            prefixes.set(s, values);
+        }
+        return prefixes;
+    }
+
+    private static Pipeline dropAssignments(Pipeline pipeline) {
+        CommandLine first = pipeline.getStages().get(0);
+        pipeline = pipeline.dropWords(Expander.assignmentCount(first));
+        List<CommandLine> stages = new ArrayList<>(pipeline.getStages());
+        for (int s = 1; s < stages.size(); s++) {
+            stages.set(s, stages.get(s).dropTokens(Expander.assignmentCount(stages.get(s))));
+        }
+        return pipeline.withStages(stages);
+    }
+
+    // Execute one pipeline and return its exit status
+    int execute(Pipeline pipeline) throws Exception {
+        List<Map<String, String>> prefixes;
+        try {
+            if (assign(pipeline)) {
+                return 0;
+            }
+            prefixes = prefixAssignments(pipeline);
+            if (prefixes != null) {
+                pipeline = dropAssignments(pipeline);
+            }
+            pipeline = expander.expand(pipeline);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 1;
+        }
+        if (events == null || pipeline.isBackground() || pipeline.isEmpty()) {
+            return executePrefixed(pipeline, prefixes);
+        }
+        long start = System.currentTimeMillis();
+        long started = System.nanoTime();
+        pipeStatus = null;
+        int status = executePrefixed(pipeline, prefixes);
+        events.record(new EventLog.Event(argv(pipeline), status, pipeStatus != null ? pipeStatus : new int[] {status},
+                start, System.nanoTime() - started, false));
+        return status;
+    }
+
+    private int executePrefixed(Pipeline pipeline, List<Map<String, String>> prefixes) throws Exception {
+        if (prefixes == null || !pipeline.isSingleCommand()) {
+            return executeExpanded(pipeline, prefixes);
+        }
+        // A single command sees the variables set, and exported, for as long as it runs
+        ShellEnvironment.Saved saved = environment.save(prefixes.get(0).keySet());
+        prefixes.get(0).forEach(environment::export);
+        try {
+            return executeExpanded(pipeline, null);
+        } finally {
+            environment.restore(saved);
+        }
+    }
+
+    private static List<List<String>> argv(Pipeline pipeline) {
+        List<List<String>> argv = new ArrayList<>(pipeline.getStages().size());
+        for (CommandLine stage : pipeline.getStages()) {
+            argv.add(stage.getTokens());
+        }
+        return argv;
+    }
+
+    private int executeExpanded(Pipeline pipeline, List<Map<String, String>> prefixes) throws Exception {
+        if (pipeline.isBackground()) {
+            out.flush();
+            long start = System.currentTimeMillis();
+            long started = System.nanoTime();
+            PipelineExecutor.Execution execution = new PipelineExecutor(this, prefixes).start(pipeline, true);
+            if (execution != null) {
+                Job job = jobs.add(pipeline.text(), execution);
+                out.println(job.pid() < 0 ? "[" + job.id() + "]" : "[" + job.id() + "] " + job.pid());
+                if (events != null) {
+                    List<List<String>> argv = argv(pipeline);
+                    execution.completion.thenAccept(status -> events.record(new EventLog.Event(argv, status,
+                            execution.statuses(), start, System.nanoTime() - started, true)));
+                }
+            }
+            return 0;
+        }
+
+        if (!pipeline.isSingleCommand()) {
+            out.flush();
+            PipelineExecutor executor = new PipelineExecutor(this, prefixes);
+            int status = executor.run(pipeline);
+            pipeStatus = executor.statuses();
+            return status;
+        }
+
+        CommandLine cmdLine = pipeline.getStages().get(0);
+        List<String> tokens = cmdLine.getTokens();
+
+        if (tokens.isEmpty()) {
+            return 0;
+        }
+
+        String command = tokens.get(0);
+
+        // Functions come before builtins and commands, as in sh
+        Node function = interpreter.function(command);
+        if (function != null) {
+            if (cmdLine.hasRedirects()) {
+                err.println(command + ": redirecting a function is not supported");
+                return 1;
+            }
+            return interpreter.call(command, function, tokens.subList(1, tokens.size()));
+        }
+
+        // Builtins run in-process: one table lookup, then the shared sink setup. Without
+        // redirects they write through the session's sinks, so a builtin in a loop
+        // allocates nothing of its own here.
+        Builtin builtin = builtins.get(command);
+        if (builtin != null) {
+            StdinSource stdin = cmdLine.getInput() != null ? openStdin(command, cmdLine) : null;
+            if (cmdLine.getInput() != null && stdin == null) {
+                return 1;
+            }
+            try (stdin) {
+                Sinks sinks = openSinks(command, cmdLine);
+                if (sinks == null) {
+                    return 1;
+                }
+                try (sinks) {
+                    IoContext io = stdin != null
+                            ? new IoContext(this, stdin.stream(), sinks.out(), sinks.err())
+                            : ioContext(sinks.out(), sinks.err());
+                    long started = Stats.start();
+                    int status = Builtins.run(builtin, command, cmdLine, io);
+                    Stats.record(Stats.Phase.BUILTIN, started);
+                    return status;
+                }
+            }
+        }
+
+        // Handle external commands
+        String executable = findCommand(command);
+        if (executable == null) {
+            // Redirect targets are still created, as bash does
+            Sinks sinks = openSinks(command, cmdLine);
+            if (sinks == null) {
+                return 127;
+            }
+            try (sinks) {
+                return notFound(command, sinks.err());
+            }
+        }
+
+        String outputFile = cmdLine.getOutputFile() != null ? cmdLine.resolvedOutputFile(currentDirectory) : null;
+        String errorFile = cmdLine.getErrorFile() != null ? cmdLine.resolvedErrorFile(currentDirectory) : null;
+        StdinSource stdin = cmdLine.getInput() != null ? openStdin(command, cmdLine) : null;
+        if (cmdLine.getInput() != null && stdin == null) {
+            return 1;
+        }
+        try (stdin) {
+            ProcessBuilder pb = newProcessBuilder(executable, tokens);
+            pb.redirectInput(stdin != null ? stdin.redirect() : stdinRedirect());
+            pb.redirectOutput(outputFile != null
+                    ? fileRedirect(redirects.prepare(outputFile).toFile(), cmdLine.isAppendOutput())
+                    : stdoutRedirect());
+            pb.redirectError(errorFile != null
+                    ? fileRedirect(redirects.prepare(errorFile).toFile(), cmdLine.isAppendError())
+                    : stderrRedirect());
+            // 2>&1 merges stderr into stdout; >&2 does too, after pointing stdout at stderr's target
+            boolean outputToError = cmdLine.duplicate() == CommandLine.Duplicate.OUTPUT_TO_ERROR;
+            pb.redirectErrorStream(cmdLine.duplicate() != CommandLine.Duplicate.NONE);
+            if (outputToError) {
+                pb.redirectOutput(errorFile != null
+                        ? fileRedirect(new File(errorFile), cmdLine.isAppendError())
+                        : ProcessBuilder.Redirect.PIPE);
+            }
+
+            out.flush();
+            long started = Stats.start();
+            Process process;
+            try {
+                process = start(List.of(pb)).get(0);
+            } catch (IOException e) {
+                // The cached binary may have vanished since it was last checked
+                commandHash().forget(command);
+                err.println(command + ": " + spawnError(e));
+                return spawnStatus(e);
+            }
+            Stats.record(Stats.Phase.SPAWN, started);
+            if (stdin != null) {
+                stdin.started(process);
+            }
+            List<Thread> pumps = new ArrayList<>(forward(process, outputFile == null && !outputToError,
+                    errorFile == null && cmdLine.duplicate() == CommandLine.Duplicate.NONE));
+            if (outputToError && errorFile == null) {
+                pumps.add(pump(process.getInputStream(), err));
+            }
+            started = Stats.start();
+            int status = process.waitFor();
+            Stats.record(Stats.Phase.WAIT, started);
+            for (Thread pump : pumps) {
+                pump.join();
+            }
+            return status;
+        } catch (IOException e) {
+            // A redirect target's directory may have vanished since it was last checked
+            redirects.forgetDirectories();
+            err.println(command + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // A for loop's word list, expanded; null, with the error reported, if it cannot be
+    CommandLine expandWords(Pipeline words) {
+        try {
+            return expander.expand(words.getStages().get(0));
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    // Each pass of a loop body sees the filesystem afresh, like a new line
+    void startPass() {
+        expander.startPass();
+    }
+
+    // A command's redirected stdin; null, with the error reported, if it cannot be opened
+    StdinSource openStdin(String command, CommandLine cmdLine) {
+        try {
+            return StdinSource.open(cmdLine.getInput(), this);
+        } catch (IOException e) {
+            err.println(command + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // A command's stdout and stderr sinks; with 2>&1 or >&2 both are one sink, opened and
+    // closed once
+    private record Sinks(OutputSink out, OutputSink err) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                if (err != out) {
+                    err.close();
+                }
+            }
+        }
+    }
+
+    // Null, with the error reported, if a target cannot be opened
+    private Sinks openSinks(String command, CommandLine cmdLine) throws IOException {
+        CommandLine.Duplicate duplicate = cmdLine.duplicate();
+        OutputSink stderr = null;
+        if (duplicate != CommandLine.Duplicate.ERROR_TO_OUTPUT) {
+            stderr = openSink(command, cmdLine, false, null);
+            if (stderr == null) {
+                return null;
+            }
+        }
+        OutputSink stdout = duplicate == CommandLine.Duplicate.OUTPUT_TO_ERROR
+                ? stderr
+                : openSink(command, cmdLine, true, stderr);
+        if (stdout == null) {
+            if (stderr != null) {
+                stderr.close();
+            }
+            return null;
+        }
+        return new Sinks(stdout, stderr != null ? stderr : stdout);
+    }
+
+    // The sink a command writes its stdout or stderr through: the session's own, or its
+    // redirect target opened once for the whole command. Returns null if the target cannot
+    // be opened.
+    private OutputSink openSink(String command, CommandLine cmdLine, boolean stdout, OutputSink errors)
+            throws IOException {
+        String file = stdout ? cmdLine.getOutputFile() : cmdLine.getErrorFile();
+        if (file == null) {
+            return stdout ? sessionOut() : sessionErr();
+        }
+        try {
+            return stdout
+                    ? redirects.open(cmdLine.resolvedOutputFile(currentDirectory), cmdLine.isAppendOutput())
+                    : redirects.open(cmdLine.resolvedErrorFile(currentDirectory), cmdLine.isAppendError());
+        } catch (IOException e) {
+            String errorMsg = command + ": " + file + ": No such file or directory";
+            if (errors != null) {
+                errors.println(errorMsg);
+            } else {
+                err.println(errorMsg);
+            }
+            return null;
+        }
+    }
+
+    // Closing a session sink only flushes it, so one instance serves every builtin
+    private OutputSink sessionOut() {
+        if (outSink == null) {
+            outSink = OutputSink.of(out);
+        }
+        return outSink;
+    }
+
+    private OutputSink sessionErr() {
+        if (errSink == null) {
+            errSink = OutputSink.of(err);
+        }
+        return errSink;
+    }
+
+    private IoContext ioContext(OutputSink stdout, OutputSink stderr) {
+        if (stdout != outSink || stderr != errSink) {
+            return new IoContext(this, builtinStdin(), stdout, stderr);
+        }
+        if (sessionIo == null) {
+            sessionIo = new IoContext(this, builtinStdin(), stdout, stderr);
+        }
+        return sessionIo;
+    }
+
+    private static ProcessBuilder.Redirect fileRedirect(File target, boolean append) {
+        return append ? ProcessBuilder.Redirect.appendTo(target) : ProcessBuilder.Redirect.to(target);
+    }
+
+    // Complete the command word: a unique match gets a trailing space, several matches
+    // extend to their common prefix, and a double Tab lists them all
+    private String autocomplete(String partialCommand, boolean listAll) {
+        List<String> candidates = completer.candidates(partialCommand);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0) + " ";
+        }
+        String common = Completer.commonPrefix(candidates);
+        if (common.length() > partialCommand.length()) {
+            return common;
+        }
+        if (listAll) {
+            return "\n" + String.join("  ", candidates) + "\n$ " + partialCommand;
+        }
+        return null;
+    }
+}
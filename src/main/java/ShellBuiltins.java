@@ -0,0 +1,312 @@
+import java.io.*;
+import java.util.*;
+
+// Builtins that inspect or change the session itself
+class ShellBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.register("echo", ShellBuiltins::echo);
+        builtins.register("pwd", ShellBuiltins::pwd);
+        builtins.register("true", (command, io) -> 0);
+        builtins.register(":", (command, io) -> 0);
+        builtins.register("false", (command, io) -> 1);
+        builtins.register("type", ShellBuiltins::type);
+        builtins.registerShellBuiltin("cd", ShellBuiltins::cd);
+        builtins.registerShellBuiltin("pushd", ShellBuiltins::pushd);
+        builtins.registerShellBuiltin("popd", ShellBuiltins::popd);
+        builtins.register("dirs", ShellBuiltins::dirs);
+        builtins.registerShellBuiltin("exit", ShellBuiltins::exit);
+        builtins.registerShellBuiltin("hash", ShellBuiltins::hash);
+        builtins.registerShellBuiltin("set", ShellBuiltins::set);
+    }
+
+    static int echo(CommandLine command, IoContext io) throws IOException {
+        OutputSink out = io.out();
+        for (int i = 1; i < command.size(); i++) {
+            if (i > 1) {
+                out.print(' ');
+            }
+            command.printToken(i, out);
+        }
+        out.println();
+        return 0;
+    }
+
+    static int pwd(CommandLine command, IoContext io) throws IOException {
+        io.out().println(io.shell().currentDirectory());
+        return 0;
+    }
+
+    // cd [DIR]: without one, HOME; `cd -` goes back to OLDPWD and says where that is
+    static int cd(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        String targetDirectory = command.size() < 2 ? "~" : command.tokenString(1);
+        if (targetDirectory.equals("-")) {
+            String previous = shell.getVariable("OLDPWD");
+            if (previous == null) {
+                io.err().println("cd: OLDPWD not set");
+                return 1;
+            }
+            int status = changeDirectory(shell, "cd", previous, io);
+            if (status == 0) {
+                io.out().println(shell.currentDirectory());
+            }
+            return status;
+        }
+        return changeDirectory(shell, "cd", targetDirectory, io);
+    }
+
+    private static int changeDirectory(Shell shell, String name, String targetDirectory, IoContext io)
+            throws IOException {
+        if (targetDirectory.startsWith("~")) {
+            String homeDirectory = shell.getenv("HOME");
+            if (homeDirectory == null) {
+                io.err().println(name + ": HOME not set");
+                return 1;
+            }
+            targetDirectory = homeDirectory + targetDirectory.substring(1);
+        }
+
+        File newDir = new File(targetDirectory);
+        if (!newDir.isAbsolute()) {
+            newDir = new File(shell.currentDirectory(), targetDirectory);
+        }
+
+        try {
+            if (newDir.isDirectory()) {
+                shell.setCurrentDirectory(newDir.getCanonicalPath());
+                return 0;
+            }
+            io.err().println(name + ": " + targetDirectory + ": No such file or directory");
+        } catch (IOException e) {
+            io.err().println(name + ": " + e.getMessage());
+        }
+        return 1;
+    }
+
+    // pushd [DIR]: push the current directory and go to DIR; without DIR, swap the top two
+    static int pushd(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        Deque<String> stack = shell.directoryStack();
+        String current = shell.currentDirectory();
+        if (command.size() < 2) {
+            if (stack.isEmpty()) {
+                io.err().println("pushd: no other directory");
+                return 1;
+            }
+            String target = stack.peek();
+            if (changeDirectory(shell, "pushd", target, io) != 0) {
+                return 1;
+            }
+            stack.pop();
+        } else if (changeDirectory(shell, "pushd", command.tokenString(1), io) != 0) {
+            return 1;
+        }
+        stack.push(current);
+        return printStack(io, false);
+    }
+
+    // popd: leave the current directory for the one below it on the stack
+    static int popd(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        Deque<String> stack = shell.directoryStack();
+        if (stack.isEmpty()) {
+            io.err().println("popd: directory stack empty");
+            return 1;
+        }
+        if (changeDirectory(shell, "popd", stack.peek(), io) != 0) {
+            return 1;
+        }
+        stack.pop();
+        return printStack(io, false);
+    }
+
+    // dirs [-c] [-v]
+    static int dirs(CommandLine command, IoContext io) throws IOException {
+        boolean numbered = false;
+        for (int i = 1; i < command.size(); i++) {
+            String option = command.tokenString(i);
+            if (option.equals("-c")) {
+                io.shell().directoryStack().clear();
+                return 0;
+            } else if (option.equals("-v")) {
+                numbered = true;
+            } else {
+                io.err().println("dirs: " + option + ": invalid option");
+                io.err().println("dirs: usage: dirs [-c] [-v]");
+                return 2;
+            }
+        }
+        return printStack(io, numbered);
+    }
+
+    // The stack with the current directory first, HOME shown as ~
+    private static int printStack(IoContext io, boolean numbered) throws IOException {
+        Shell shell = io.shell();
+        List<String> entries = new ArrayList<>(shell.directoryStack().size() + 1);
+        entries.add(shell.currentDirectory());
+        entries.addAll(shell.directoryStack());
+        String home = shell.getenv("HOME");
+        OutputSink out = io.out();
+        for (int i = 0; i < entries.size(); i++) {
+            String entry = entries.get(i);
+            if (home != null && !home.isEmpty() && (entry.equals(home) || entry.startsWith(home + "/"))) {
+                entry = "~" + entry.substring(home.length());
+            }
+            if (numbered) {
+                out.println(String.format("%2d  %s", i, entry));
+            } else {
+                out.print(i > 0 ? " " : "").print(entry);
+            }
+        }
+        if (!numbered) {
+            out.println();
+        }
+        return 0;
+    }
+
+    // exit [N]: N defaults to the status of the last command
+    static int exit(CommandLine command, IoContext io) throws IOException {
+        int status = io.shell().interpreter().status();
+        if (command.size() > 2) {
+            io.err().println("exit: too many arguments");
+            return 1;
+        }
+        if (command.size() > 1) {
+            try {
+                status = Integer.parseInt(command.tokenString(1)) & 0xff;
+            } catch (NumberFormatException e) {
+                io.err().println("exit: " + command.tokenString(1) + ": numeric argument required");
+                status = 2;
+            }
+        }
+        io.shell().requestExit(status);
+        return status;
+    }
+
+    // set [-e|+e] [-o|+o OPTION] [--] [ARG...]: the options are errexit and pipefail; any
+    // arguments become the positional parameters, and without any the variables are listed
+    static int set(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        if (command.size() == 1) {
+            for (Map.Entry<String, String> entry : shell.environment().values().entrySet()) {
+                io.out().print(entry.getKey()).print('=').println(quote(entry.getValue()));
+            }
+            return 0;
+        }
+        int i = 1;
+        for (; i < command.size(); i++) {
+            String option = command.tokenString(i);
+            if (option.equals("--")) {
+                i++;
+                shell.setPositional(List.copyOf(command.getTokens().subList(i, command.size())));
+                return 0;
+            }
+            if (option.length() < 2 || (option.charAt(0) != '-' && option.charAt(0) != '+')) {
+                break;
+            }
+            boolean on = option.charAt(0) == '-';
+            if (option.length() == 2 && option.charAt(1) == 'o') {
+                if (i + 1 == command.size()) {
+                    listOptions(shell, on, io);
+                    continue;
+                }
+                String name = command.tokenString(++i);
+                if (name.equals("errexit")) {
+                    shell.setErrexit(on);
+                } else if (name.equals("pipefail")) {
+                    shell.setPipefail(on);
+                } else {
+                    io.err().println("set: " + name + ": invalid option name");
+                    return 2;
+                }
+                continue;
+            }
+            for (int c = 1; c < option.length(); c++) {
+                if (option.charAt(c) != 'e') {
+                    io.err().println("set: " + option.charAt(0) + option.charAt(c) + ": invalid option");
+                    io.err().println("set: usage: set [-e] [-o option-name] [--] [arg ...]");
+                    return 2;
+                }
+                shell.setErrexit(on);
+            }
+        }
+        if (i < command.size()) {
+            shell.setPositional(List.copyOf(command.getTokens().subList(i, command.size())));
+        }
+        return 0;
+    }
+
+    // set -o lists the options as a table, set +o as the commands that restore them
+    private static void listOptions(Shell shell, boolean table, IoContext io) throws IOException {
+        String[] names = {"errexit", "pipefail"};
+        boolean[] values = {shell.errexit(), shell.pipefail()};
+        for (int i = 0; i < names.length; i++) {
+            io.out().println(table
+                    ? String.format("%-15s\t%s", names[i], values[i] ? "on" : "off")
+                    : "set " + (values[i] ? "-o " : "+o ") + names[i]);
+        }
+    }
+
+    // Single quotes around a value that needs them, as `set` shows it
+    private static String quote(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || "_./:,@%+=-".indexOf(c) >= 0)) {
+                return "'" + value.replace("'", "'\\''") + "'";
+            }
+        }
+        return value;
+    }
+
+    static int type(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        int status = 0;
+        for (int i = 1; i < command.size(); i++) {
+            String typeCommand = command.tokenString(i);
+            String resolved;
+            if (shell.interpreter().function(typeCommand) != null) {
+                io.out().println(typeCommand + " is a function");
+            } else if (shell.builtins().contains(typeCommand) && !shell.builtins().isStandIn(typeCommand)) {
+                io.out().println(typeCommand + " is a shell builtin");
+            } else if ((resolved = shell.findCommand(typeCommand)) != null) {
+                // A path is shown as given, as bash does
+                io.out().println(typeCommand + " is " + (typeCommand.indexOf('/') >= 0 ? typeCommand : resolved));
+            } else if (shell.builtins().contains(typeCommand)) {
+                // A stand-in with no program behind it
+                io.out().println(typeCommand + " is a shell builtin");
+            } else {
+                io.out().println(typeCommand + ": not found");
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    static int hash(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        CommandHash commandHash = shell.commandHash();
+        if (command.size() > 1 && command.tokenEquals(1, "-r")) {
+            commandHash.clear();
+        } else if (command.size() > 1 && command.tokenEquals(1, "-a")) {
+            commandHash.hashAll();
+        } else if (command.size() > 1) {
+            int status = 0;
+            for (int i = 1; i < command.size(); i++) {
+                String name = command.tokenString(i);
+                if (commandHash.lookup(name) == null && !shell.builtins().contains(name)) {
+                    io.err().println("hash: " + name + ": not found");
+                    status = 1;
+                }
+            }
+            return status;
+        } else if (commandHash.isEmpty()) {
+            io.err().println("hash: hash table empty");
+        } else {
+            io.out().println("hits\tcommand");
+            for (Map.Entry<String, Integer> entry : commandHash.hitCounts().entrySet()) {
+                io.out().println(String.format("%4d\t%s", entry.getValue(), commandHash.get(entry.getKey())));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.*;
+
+// Thin front end for ShellServer: forwards argv, cwd, environment and stdin, then
+// replays the framed stdout/stderr it gets back. It touches as few classes as possible
+// so its own startup stays small.
+class ShellClient {
+    public static int connect(Path socketPath, List<String> args) throws IOException {
+        // The environment and stdin go to whoever owns the socket, so it must be us: both
+        // the socket file and the process that answers on it
+        if (!Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+            System.err.println("shell: " + socketPath + ": no server is running");
+            return 1;
+        }
+        if (!Files.getOwner(socketPath, LinkOption.NOFOLLOW_LINKS).equals(ShellServer.currentUser())) {
+            System.err.println("shell: " + socketPath + ": owned by another user");
+            return 1;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            if (!ShellServer.peerIsCurrentUser(channel)) {
+                System.err.println("shell: " + socketPath + ": server runs as another user");
+                return 1;
+            }
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            header.writeInt(args.size());
+            for (String arg : args) {
+                ShellServer.writeString(header, arg);
+            }
+            ShellServer.writeString(header, System.getProperty("user.dir"));
+            Map<String, String> environment = System.getenv();
+            header.writeInt(environment.size());
+            for (Map.Entry<String, String> entry : environment.entrySet()) {
+                ShellServer.writeString(header, entry.getKey());
+                ShellServer.writeString(header, entry.getValue());
+            }
+            header.writeBoolean(Shell.stdinIsTerminal());
+            header.flush();
+
+            Thread stdin = new Thread(() -> {
+                try {
+                    System.in.transferTo(header);
+                    header.flush();
+                    channel.shutdownOutput();
+                } catch (IOException ignored) {}
+            }, "shell-client-stdin");
+            stdin.setDaemon(true);
+            stdin.start();
+
+            DataInputStream frames = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte stream = frames.readByte();
+                if (stream == ShellServer.FRAME_EXIT) {
+                    return frames.readInt();
+                }
+                int length = frames.readInt();
+                PrintStream target = stream == ShellServer.FRAME_STDERR ? System.err : System.out;
+                while (length > 0) {
+                    int n = frames.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+                target.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("shell: server closed the connection");
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.util.*;
+
+// The session's variables, each with an export flag, and the environment its children get.
+//
+// The variable map is copy-on-write: a subshell for $(...) shares its parent's and copies
+// it only once it assigns something, so a substitution copies nothing in a session with
+// hundreds of variables.
+//
+// Children get the environment as differences from the JVM's own, kept up to date as
+// variables change. ProcessBuilder hands every child the JVM's environment unless asked
+// for its map, and offers no way to pass a prebuilt one, so while nothing exported differs
+// the child inherits environ as it is, and otherwise only the differences are applied to
+// the copy ProcessBuilder makes. No spawn rebuilds the environment from the variables.
+class ShellEnvironment {
+    // A value is null for a variable exported before it is set, which children do not get
+    record Variable(String value, boolean exported) {}
+
+    // The variables as they were before a command's prefix assignments, to put back after
+    record Saved(Map<String, Variable> variables) {}
+
+    private static final Map<String, String> INHERITED = System.getenv();
+
+    private Map<String, Variable> variables;
+    // Exported values that differ from INHERITED, and inherited names not exported here
+    private Map<String, String> overrides;
+    private Set<String> removals;
+    // Set while the maps are shared with a copy; the first change makes them private
+    private boolean shared;
+    // Bumped on every change to what children get
+    private long version;
+    // Bumped on every change to PATH, exported or not, for the command hash
+    private long pathVersion;
+
+    public ShellEnvironment(Map<String, String> exported) {
+        variables = new HashMap<>(exported.size() * 2);
+        overrides = new HashMap<>();
+        removals = new HashSet<>();
+        for (Map.Entry<String, String> entry : exported.entrySet()) {
+            variables.put(entry.getKey(), new Variable(entry.getValue(), true));
+            if (!entry.getValue().equals(INHERITED.get(entry.getKey()))) {
+                overrides.put(entry.getKey(), entry.getValue());
+            }
+        }
+        // A remote client's environment differs from the server's; work that out once
+        for (String name : INHERITED.keySet()) {
+            if (!exported.containsKey(name)) {
+                removals.add(name);
+            }
+        }
+    }
+
+    private ShellEnvironment(ShellEnvironment parent) {
+        variables = parent.variables;
+        overrides = parent.overrides;
+        removals = parent.removals;
+        version = parent.version;
+        pathVersion = parent.pathVersion;
+        shared = true;
+        parent.shared = true;
+    }
+
+    // An independent copy, for a subshell
+    public ShellEnvironment copy() {
+        return new ShellEnvironment(this);
+    }
+
+    public String get(String name) {
+        Variable variable = variables.get(name);
+        return variable != null ? variable.value() : null;
+    }
+
+    public boolean isExported(String name) {
+        Variable variable = variables.get(name);
+        return variable != null && variable.exported();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public long pathVersion() {
+        return pathVersion;
+    }
+
+    // NAME=value: a variable keeps its export flag; a new one is not exported
+    public void set(String name, String value) {
+        Variable old = variables.get(name);
+        put(name, new Variable(value, old != null && old.exported()));
+    }
+
+    // export NAME[=value]; without a value the variable keeps the one it has, if any
+    public void export(String name, String value) {
+        put(name, new Variable(value != null ? value : get(name), true));
+    }
+
+    // export -n NAME
+    public void unexport(String name) {
+        Variable old = variables.get(name);
+        if (old != null && old.exported()) {
+            put(name, new Variable(old.value(), false));
+        }
+    }
+
+    public void unset(String name) {
+        if (variables.containsKey(name)) {
+            put(name, null);
+        }
+    }
+
+    // What children get, sorted by name
+    public SortedMap<String, String> exported() {
+        SortedMap<String, String> exported = new TreeMap<>();
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            Variable variable = entry.getValue();
+            if (variable.exported() && variable.value() != null) {
+                exported.put(entry.getKey(), variable.value());
+            }
+        }
+        return exported;
+    }
+
+    // Every variable that is set, exported or not, sorted by name
+    public SortedMap<String, String> values() {
+        SortedMap<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            if (entry.getValue().value() != null) {
+                values.put(entry.getKey(), entry.getValue().value());
+            }
+        }
+        return values;
+    }
+
+    // Names and values as `export -p` lists them: exported ones, including those not set
+    public SortedMap<String, Variable> exportedVariables() {
+        SortedMap<String, Variable> exported = new TreeMap<>();
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            if (entry.getValue().exported()) {
+                exported.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return exported;
+    }
+
+    public Saved save(Collection<String> names) {
+        Map<String, Variable> saved = new HashMap<>();
+        for (String name : names) {
+            saved.put(name, variables.get(name));
+        }
+        return new Saved(saved);
+    }
+
+    public void restore(Saved saved) {
+        saved.variables().forEach(this::put);
+    }
+
+    // Give a child process this environment
+    public void applyTo(ProcessBuilder pb) {
+        if (overrides.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        Map<String, String> environment = pb.environment();
+        for (String name : removals) {
+            environment.remove(name);
+        }
+        environment.putAll(overrides);
+    }
+
+    private void put(String name, Variable variable) {
+        if (shared) {
+            variables = new HashMap<>(variables);
+            overrides = new HashMap<>(overrides);
+            removals = new HashSet<>(removals);
+            shared = false;
+        }
+        Variable old = variable != null ? variables.put(name, variable) : variables.remove(name);
+        if (name.equals("PATH")) {
+            pathVersion++;
+        }
+        boolean wasPassed = old != null && old.exported() && old.value() != null;
+        boolean passed = variable != null && variable.exported() && variable.value() != null;
+        if (!wasPassed && !passed) {
+            return;
+        }
+        version++;
+        String inherited = INHERITED.get(name);
+        if (passed) {
+            removals.remove(name);
+            if (variable.value().equals(inherited)) {
+                overrides.remove(name);
+            } else {
+                overrides.put(name, variable.value());
+            }
+        } else {
+            overrides.remove(name);
+            if (inherited != null) {
+                removals.add(name);
+            }
+        }
+    }
+}
+
+class EnvironmentBuiltins {
+    static void registerAll(Builtins builtins) {
+        builtins.registerShellBuiltin("export", EnvironmentBuiltins::export);
+        builtins.registerShellBuiltin("unset", EnvironmentBuiltins::unset);
+        builtins.registerStandIn("env", EnvironmentBuiltins::env);
+    }
+
+    // export [-n] [-p] [NAME[=value]...]
+    static int export(CommandLine command, IoContext io) throws IOException {
+        ShellEnvironment environment = io.shell().environment();
+        boolean unexport = false;
+        int i = 1;
+        for (; i < command.size() && command.tokenString(i).startsWith("-"); i++) {
+            String option = command.tokenString(i);
+            if (option.equals("-n")) {
+                unexport = true;
+            } else if (!option.equals("-p")) {
+                io.err().println("export: " + option + ": invalid option");
+                io.err().println("export: usage: export [-n] [-p] [name[=value] ...]");
+                return 2;
+            }
+        }
+        if (i == command.size()) {
+            for (Map.Entry<String, ShellEnvironment.Variable> entry : environment.exportedVariables().entrySet()) {
+                String value = entry.getValue().value();
+                io.out().println("declare -x " + entry.getKey() + (value == null ? "" : "=\"" + quote(value) + "\""));
+            }
+            return 0;
+        }
+        int status = 0;
+        for (; i < command.size(); i++) {
+            String argument = command.tokenString(i);
+            int equals = argument.indexOf('=');
+            String name = equals < 0 ? argument : argument.substring(0, equals);
+            if (!ScriptParser.isName(name)) {
+                io.err().println("export: `" + argument + "': not a valid identifier");
+                status = 1;
+            } else if (unexport) {
+                environment.unexport(name);
+            } else {
+                environment.export(name, equals < 0 ? null : argument.substring(equals + 1));
+            }
+        }
+        return status;
+    }
+
+    // unset [-v] [-f] NAME...: without -f or -v a name that is no variable may be a function
+    static int unset(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        boolean variables = false;
+        boolean functions = false;
+        int i = 1;
+        for (; i < command.size() && command.tokenString(i).startsWith("-"); i++) {
+            String option = command.tokenString(i);
+            if (option.equals("-v")) {
+                variables = true;
+            } else if (option.equals("-f")) {
+                functions = true;
+            } else {
+                io.err().println("unset: " + option + ": invalid option");
+                io.err().println("unset: usage: unset [-f] [-v] [name ...]");
+                return 2;
+            }
+        }
+        int status = 0;
+        for (; i < command.size(); i++) {
+            String name = command.tokenString(i);
+            if (!ScriptParser.isName(name)) {
+                io.err().println("unset: `" + name + "': not a valid identifier");
+                status = 1;
+            } else if (functions) {
+                shell.interpreter().removeFunction(name);
+            } else if (variables || shell.getVariable(name) != null || shell.environment().isExported(name)) {
+                shell.environment().unset(name);
+            } else {
+                shell.interpreter().removeFunction(name);
+            }
+        }
+        return status;
+    }
+
+    // env lists what children get. Given operands it is the env program's job, which is
+    // run with this environment.
+    static int env(CommandLine command, IoContext io) throws IOException {
+        Shell shell = io.shell();
+        if (command.size() > 1) {
+            String executable = shell.findCommand("env");
+            if (executable == null) {
+                io.err().println("env: command not found");
+                return 127;
+            }
+            return shell.runProgram(executable, command.getTokens(), io);
+        }
+        for (Map.Entry<String, String> entry : shell.environment().exported().entrySet()) {
+            io.out().print(entry.getKey()).print('=').println(entry.getValue());
+        }
+        return 0;
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c == '$' || c == '`') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.toString();
+    }
+}
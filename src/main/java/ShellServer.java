@@ -0,0 +1,187 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.*;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+// Long-lived daemon that runs one isolated Shell session per client connection, so
+// clients skip JVM startup and class loading entirely.
+//
+// Wire format. The client sends its argv, cwd, environment and whether its stdin is a
+// terminal as a DataOutputStream header, each string as [int length][UTF-8 bytes],
+// followed by raw stdin bytes until it shuts down its side. The server answers with
+// frames of [byte stream][int length][bytes], where stream 1 is stdout and 2 is stderr;
+// a final frame [0][int status] carries the exit status.
+//
+// The socket lives in a directory only its user can enter, and each side checks that the
+// other runs as the same user before trusting it with a session.
+class ShellServer {
+    public static final byte FRAME_EXIT = 0;
+    public static final byte FRAME_STDOUT = 1;
+    public static final byte FRAME_STDERR = 2;
+    // Far above any argument or environment string; a bigger length is a corrupt header
+    private static final int MAX_STRING_BYTES = 16 << 20;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private final Path socketPath;
+
+    public ShellServer(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    // SHELL_SOCKET if set; otherwise in $XDG_RUNTIME_DIR, which the system makes private to
+    // the user, or failing that in a directory of our own under the temporary directory
+    public static Path defaultSocketPath() throws IOException {
+        String configured = System.getenv("SHELL_SOCKET");
+        if (configured != null && !configured.isEmpty()) {
+            return Path.of(configured);
+        }
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty()) {
+            return Path.of(runtime, "codecrafters-shell.sock");
+        }
+        Path directory = Path.of(System.getProperty("java.io.tmpdir"), "codecrafters-shell-" + System.getProperty("user.name"));
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (FileAlreadyExistsException e) {
+                // Another session made it first; it is checked below like any other
+            }
+        }
+        // Someone else may have made it first, in a directory anyone can write to
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)
+                || !Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).equals(currentUser())
+                || !Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS).equals(OWNER_ONLY)) {
+            throw new IOException(directory + ": not a directory private to " + System.getProperty("user.name"));
+        }
+        return directory.resolve("shell.sock");
+    }
+
+    static UserPrincipal currentUser() throws IOException {
+        return FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    // Whether the process at the other end of a connection runs as this user
+    static boolean peerIsCurrentUser(SocketChannel channel) throws IOException {
+        UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+        return peer.user().equals(currentUser());
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("bad string length " + length);
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    public void serve() throws IOException {
+        Files.deleteIfExists(socketPath);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            socketPath.toFile().deleteOnExit();
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+
+            while (true) {
+                SocketChannel client = server.accept();
+                if (!peerIsCurrentUser(client)) {
+                    client.close();
+                    continue;
+                }
+                // Sessions block in Process.waitFor, so give each a platform thread of its own
+                Thread session = new Thread(() -> handle(client), "shell-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+
+            List<String> args = new ArrayList<>();
+            int argc = in.readInt();
+            for (int i = 0; i < argc; i++) {
+                args.add(readString(in));
+            }
+            String cwd = readString(in);
+            Map<String, String> environment = new HashMap<>();
+            int envc = in.readInt();
+            for (int i = 0; i < envc; i++) {
+                environment.put(readString(in), readString(in));
+            }
+            boolean interactive = in.readBoolean();
+
+            PrintStream out = new PrintStream(new FrameOutputStream(frames, FRAME_STDOUT), true);
+            PrintStream err = new PrintStream(new FrameOutputStream(frames, FRAME_STDERR), true);
+            int status;
+            try {
+                status = new Shell(in, out, err, environment, cwd, args, false, interactive).run();
+            } catch (Exception e) {
+                err.println("shell: " + e.getMessage());
+                status = 1;
+            }
+            out.flush();
+            err.flush();
+
+            synchronized (frames) {
+                frames.writeByte(FRAME_EXIT);
+                frames.writeInt(status);
+                frames.flush();
+            }
+        } catch (IOException e) {
+            // The client disconnected; its session simply ends
+        }
+    }
+
+    // Wraps every write in a frame tagged with the stream it belongs to
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream frames;
+        private final byte stream;
+
+        FrameOutputStream(DataOutputStream frames, byte stream) {
+            this.frames = frames;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (frames) {
+                frames.writeByte(stream);
+                frames.writeInt(len);
+                frames.write(b, off, len);
+                frames.flush();
+            }
+        }
+    }
+}
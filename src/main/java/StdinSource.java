@@ -0,0 +1,172 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A command's redirected stdin, opened for one run. `< file` is handed to a child as the
+// file itself (ProcessBuilder.Redirect.from) and opened directly for a builtin.
+//
+// Here-strings and here-document bodies are never encoded into one byte array. A child
+// reads the text from a pipe that a virtual thread fills a buffer at a time; a builtin
+// reads a stream that encodes on demand. Past SPILL_THRESHOLD characters the text is
+// written to a temp file first and the child reads that, unlinked once it has been
+// opened, so a child that reads slowly or not at all ties up neither a feeder thread nor
+// the text for as long as it runs.
+class StdinSource implements Closeable {
+    static final int SPILL_THRESHOLD = 1 << 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    // The file to read, or null for text fed through a pipe
+    private final File file;
+    private final boolean temporary;
+    private final String text;
+    private final boolean newline;
+    private InputStream stream;
+
+    private StdinSource(File file, boolean temporary, String text, boolean newline) {
+        this.file = file;
+        this.temporary = temporary;
+        this.text = text;
+        this.newline = newline;
+    }
+
+    // Throws FileNotFoundException, with a message in bash's words, for a file that cannot be read
+    public static StdinSource open(StdinRedirect redirect, Shell shell) throws IOException {
+        long started = Stats.start();
+        try {
+            if (redirect.kind() == StdinRedirect.Kind.FILE) {
+                File file = new File(shell.resolvePath(redirect.text()));
+                if (!file.exists()) {
+                    throw new FileNotFoundException(redirect.text() + ": No such file or directory");
+                }
+                if (file.isDirectory()) {
+                    throw new FileNotFoundException(redirect.text() + ": Is a directory");
+                }
+                if (!file.canRead()) {
+                    throw new FileNotFoundException(redirect.text() + ": Permission denied");
+                }
+                return new StdinSource(file, false, null, false);
+            }
+            // A here-string gets a newline after it, as in bash; a body already ends with one
+            boolean newline = redirect.kind() == StdinRedirect.Kind.HERE_STRING;
+            String text = redirect.text();
+            if (text.length() <= SPILL_THRESHOLD) {
+                return new StdinSource(null, false, text, newline);
+            }
+            Path spill = Files.createTempFile("shell-stdin", null);
+            try (InputStream encoded = encode(text, newline); OutputStream out = Files.newOutputStream(spill)) {
+                encoded.transferTo(out);
+            } catch (IOException e) {
+                Files.deleteIfExists(spill);
+                throw e;
+            }
+            return new StdinSource(spill.toFile(), true, null, false);
+        } finally {
+            Stats.record(Stats.Phase.REDIRECT, started);
+        }
+    }
+
+    // What a child's stdin is set to
+    public ProcessBuilder.Redirect redirect() {
+        return file != null ? ProcessBuilder.Redirect.from(file) : ProcessBuilder.Redirect.PIPE;
+    }
+
+    // Once the child has started: feed it the text, or let go of the spill file it opened
+    public void started(Process process) throws IOException {
+        if (file == null) {
+            Thread.ofVirtual().name("stdin-feeder").start(() -> {
+                try (OutputStream in = process.getOutputStream(); InputStream encoded = encode(text, newline)) {
+                    encoded.transferTo(in);
+                } catch (IOException ignored) {
+                    // The child closed its stdin without reading it all, as with a pipe
+                }
+            });
+        }
+        release();
+    }
+
+    // What a builtin reads; closed along with this source
+    public InputStream stream() throws IOException {
+        if (stream == null) {
+            stream = file != null ? new FileInputStream(file) : encode(text, newline);
+            release();
+        }
+        return stream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    // The spill file is unlinked as soon as its reader has it open
+    private void release() throws IOException {
+        if (temporary) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static InputStream encode(String text, boolean newline) {
+        InputStream encoded = new EncodingInputStream(text);
+        return newline ? new SequenceInputStream(encoded, new ByteArrayInputStream(new byte[] {'\n'})) : encoded;
+    }
+
+    // Text as UTF-8, encoded a buffer at a time as it is read
+    private static class EncodingInputStream extends InputStream {
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+        private boolean flushed;
+
+        EncodingInputStream(String text) {
+            this.chars = CharBuffer.wrap(text);
+        }
+
+        @Override
+        public int read() {
+            return fill() ? bytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        private boolean fill() {
+            while (!bytes.hasRemaining()) {
+                if (flushed) {
+                    return false;
+                }
+                bytes.clear();
+                CoderResult result = encoder.encode(chars, bytes, true);
+                if (result.isUnderflow()) {
+                    encoder.flush(bytes);
+                    flushed = true;
+                }
+                bytes.flip();
+            }
+            return true;
+        }
+    }
+}
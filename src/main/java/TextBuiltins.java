@@ -0,0 +1,657 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Common utilities run in-process so scripts do not pay a fork/exec for them
+class TextBuiltins {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Set<String> BINARY_OPERATORS =
+            Set.of("=", "==", "!=", "-eq", "-ne", "-lt", "-le", "-gt", "-ge");
+
+    static void registerAll(Builtins builtins) {
+        builtins.registerStandIn("cat", TextBuiltins::cat);
+        builtins.registerStandIn("wc", TextBuiltins::wc);
+        builtins.registerStandIn("head", TextBuiltins::head);
+        builtins.register("printf", TextBuiltins::printf);
+        builtins.register("test", TextBuiltins::test);
+        builtins.register("[", TextBuiltins::bracket);
+    }
+
+    static int cat(CommandLine command, IoContext io) throws IOException {
+        List<String> files = command.getTokens().subList(1, command.size());
+        for (String file : files) {
+            if (file.length() > 1 && file.charAt(0) == '-') {
+                return runProgram(command, file, io);
+            }
+        }
+        if (files.isEmpty()) {
+            copy(io.in(), io.out());
+            return 0;
+        }
+
+        int status = 0;
+        for (String file : files) {
+            if (file.equals("-")) {
+                copy(io.in(), io.out());
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(Path.of(io.shell().resolvePath(file)))) {
+                copy(in, io.out());
+            } catch (NoSuchFileException e) {
+                io.err().println("cat: " + file + ": No such file or directory");
+                status = 1;
+            } catch (IOException e) {
+                if (Files.isDirectory(Path.of(io.shell().resolvePath(file)))) {
+                    io.err().println("cat: " + file + ": Is a directory");
+                    status = 1;
+                } else {
+                    throw e;
+                }
+            }
+        }
+        return status;
+    }
+
+    static int wc(CommandLine command, IoContext io) throws IOException {
+        boolean lines = false;
+        boolean words = false;
+        boolean bytes = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < command.size(); i++) {
+            String arg = command.tokenString(i);
+            if (arg.length() > 1 && arg.charAt(0) == '-') {
+                for (int j = 1; j < arg.length(); j++) {
+                    switch (arg.charAt(j)) {
+                        case 'l' -> lines = true;
+                        case 'w' -> words = true;
+                        case 'c' -> bytes = true;
+                        default -> {
+                            return runProgram(command, arg, io);
+                        }
+                    }
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+        if (!lines && !words && !bytes) {
+            lines = words = bytes = true;
+        }
+
+        List<long[]> counts = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        long[] total = new long[3];
+        int status = 0;
+        if (files.isEmpty()) {
+            counts.add(count(io.in()));
+            names.add(null);
+        }
+        for (String file : files) {
+            try (InputStream in = Files.newInputStream(Path.of(io.shell().resolvePath(file)))) {
+                long[] c = count(in);
+                counts.add(c);
+                names.add(file);
+                for (int k = 0; k < 3; k++) {
+                    total[k] += c[k];
+                }
+            } catch (IOException e) {
+                io.err().println("wc: " + file + ": No such file or directory");
+                status = 1;
+            }
+        }
+        if (files.size() > 1) {
+            counts.add(total);
+            names.add("total");
+        }
+
+        // GNU wc pads to the widest count, or to 7 columns when reading stdin, but not at
+        // all when it prints a single number
+        int fields = (lines ? 1 : 0) + (words ? 1 : 0) + (bytes ? 1 : 0);
+        int width = 1;
+        if (files.isEmpty()) {
+            width = fields > 1 ? 7 : 1;
+        } else if (fields > 1 || files.size() > 1) {
+            for (long[] c : counts) {
+                width = Math.max(width, Long.toString(c[2]).length());
+            }
+        }
+        for (int i = 0; i < counts.size(); i++) {
+            long[] c = counts.get(i);
+            StringBuilder line = new StringBuilder();
+            if (lines) {
+                pad(line, c[0], width);
+            }
+            if (words) {
+                pad(line, c[1], width);
+            }
+            if (bytes) {
+                pad(line, c[2], width);
+            }
+            if (names.get(i) != null) {
+                line.append(' ').append(names.get(i));
+            }
+            io.out().println(line);
+        }
+        return status;
+    }
+
+    static int head(CommandLine command, IoContext io) throws IOException {
+        long limit = 10;
+        boolean byBytes = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < command.size(); i++) {
+            String arg = command.tokenString(i);
+            try {
+                if ((arg.equals("-n") || arg.equals("-c")) && i + 1 < command.size()) {
+                    byBytes = arg.equals("-c");
+                    limit = Long.parseLong(command.tokenString(++i));
+                } else if (arg.startsWith("-n") || arg.startsWith("-c")) {
+                    byBytes = arg.startsWith("-c");
+                    limit = Long.parseLong(arg.substring(2));
+                } else if (arg.length() > 1 && arg.charAt(0) == '-' && Character.isDigit(arg.charAt(1))) {
+                    limit = Long.parseLong(arg.substring(1));
+                } else if (arg.length() > 1 && arg.charAt(0) == '-') {
+                    return runProgram(command, arg, io);
+                } else {
+                    files.add(arg);
+                }
+            } catch (NumberFormatException e) {
+                // A size suffix such as 1K, or not a number at all; head itself says which
+                return runProgram(command, arg, io);
+            }
+            // All but the last N lines or bytes
+            if (limit < 0) {
+                return runProgram(command, arg, io);
+            }
+        }
+
+        if (files.isEmpty()) {
+            headOf(io.in(), io.out(), limit, byBytes);
+            return 0;
+        }
+        int status = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String file = files.get(i);
+            if (files.size() > 1) {
+                io.out().println((i > 0 ? "\n" : "") + "==> " + file + " <==");
+            }
+            try (InputStream in = Files.newInputStream(Path.of(io.shell().resolvePath(file)))) {
+                headOf(in, io.out(), limit, byBytes);
+            } catch (IOException e) {
+                io.err().println("head: cannot open '" + file + "' for reading: No such file or directory");
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    // An option the stand-in does not implement: the program on PATH runs the whole command
+    private static int runProgram(CommandLine command, String option, IoContext io) throws IOException {
+        String name = command.tokenString(0);
+        String executable = io.shell().findCommand(name);
+        if (executable == null) {
+            io.err().println(name + ": " + option + ": unsupported option");
+            return 2;
+        }
+        return io.shell().runProgram(executable, command.getTokens(), io);
+    }
+
+    static int printf(CommandLine command, IoContext io) throws IOException {
+        if (command.size() < 2) {
+            io.err().println("printf: usage: printf format [arguments]");
+            return 2;
+        }
+        String format = command.tokenString(1);
+        List<String> args = command.getTokens().subList(2, command.size());
+        StringBuilder output = new StringBuilder();
+        int next = 0;
+        // The format is reused until every argument has been consumed, as in bash. A bad
+        // conversion stops there: what came before it is still printed.
+        try {
+            do {
+                next = formatOnce(format, args, next, output);
+            } while (next > 0 && next < args.size());
+        } catch (IllegalArgumentException e) {
+            io.out().print(output);
+            io.err().println("printf: " + e.getMessage());
+            return 1;
+        }
+        io.out().print(output);
+        return 0;
+    }
+
+    static int test(CommandLine command, IoContext io) throws IOException {
+        return evaluate(command.getTokens().subList(1, command.size()), io);
+    }
+
+    static int bracket(CommandLine command, IoContext io) throws IOException {
+        if (command.size() < 2 || !command.tokenEquals(command.size() - 1, "]")) {
+            io.err().println("[: missing `]'");
+            return 2;
+        }
+        return evaluate(command.getTokens().subList(1, command.size() - 1), io);
+    }
+
+    // Up to four arguments are read by their count, as POSIX has it; more are parsed as an
+    // expression
+    private static int evaluate(List<String> args, IoContext io) throws IOException {
+        switch (args.size()) {
+            case 0:
+                return 1;
+            case 1:
+                return args.get(0).isEmpty() ? 1 : 0;
+            case 2:
+                if (args.get(0).equals("!")) {
+                    return args.get(1).isEmpty() ? 0 : 1;
+                }
+                return unary(args.get(0), args.get(1), io);
+            case 3:
+                String op = args.get(1);
+                if (BINARY_OPERATORS.contains(op)) {
+                    return binary(args.get(0), op, args.get(2), io);
+                }
+                if (op.equals("-a") || op.equals("-o")) {
+                    return combine(evaluate(args.subList(0, 1), io), op, evaluate(args.subList(2, 3), io));
+                }
+                if (args.get(0).equals("!")) {
+                    return not(evaluate(args.subList(1, 3), io));
+                }
+                if (args.get(0).equals("(") && args.get(2).equals(")")) {
+                    return evaluate(args.subList(1, 2), io);
+                }
+                return binary(args.get(0), op, args.get(2), io);
+            case 4:
+                if (args.get(0).equals("!")) {
+                    return not(evaluate(args.subList(1, 4), io));
+                }
+                return new Expression(args, io).evaluate();
+            default:
+                return new Expression(args, io).evaluate();
+        }
+    }
+
+    private static int not(int status) {
+        return status == 2 ? 2 : 1 - status;
+    }
+
+    // -a and -o; an error on either side is the result
+    private static int combine(int left, String op, int right) {
+        if (left == 2 || right == 2) {
+            return 2;
+        }
+        boolean result = op.equals("-a") ? left == 0 && right == 0 : left == 0 || right == 0;
+        return result ? 0 : 1;
+    }
+
+    // test's grammar: -o binds looser than -a, and ! and ( ) apply to the term that follows.
+    // Every term is evaluated, so a malformed one is reported even where it cannot matter.
+    private static final class Expression {
+        private final List<String> args;
+        private final IoContext io;
+        private int pos;
+
+        Expression(List<String> args, IoContext io) {
+            this.args = args;
+            this.io = io;
+        }
+
+        int evaluate() throws IOException {
+            int status = or();
+            if (status != 2 && pos < args.size()) {
+                io.err().println("test: too many arguments");
+                return 2;
+            }
+            return status;
+        }
+
+        private int or() throws IOException {
+            int status = and();
+            while (status != 2 && pos < args.size() && args.get(pos).equals("-o")) {
+                pos++;
+                status = combine(status, "-o", and());
+            }
+            return status;
+        }
+
+        private int and() throws IOException {
+            int status = term();
+            while (status != 2 && pos < args.size() && args.get(pos).equals("-a")) {
+                pos++;
+                status = combine(status, "-a", term());
+            }
+            return status;
+        }
+
+        private int term() throws IOException {
+            if (pos == args.size()) {
+                io.err().println("test: argument expected");
+                return 2;
+            }
+            String arg = args.get(pos);
+            if (arg.equals("!")) {
+                pos++;
+                return not(term());
+            }
+            if (arg.equals("(")) {
+                pos++;
+                int status = or();
+                if (status == 2) {
+                    return 2;
+                }
+                if (pos == args.size() || !args.get(pos).equals(")")) {
+                    io.err().println("test: `)' expected");
+                    return 2;
+                }
+                pos++;
+                return status;
+            }
+            if (pos + 2 < args.size() && BINARY_OPERATORS.contains(args.get(pos + 1))) {
+                pos += 3;
+                return binary(arg, args.get(pos - 2), args.get(pos - 1), io);
+            }
+            if (arg.length() == 2 && arg.charAt(0) == '-' && pos + 1 < args.size()) {
+                pos += 2;
+                return unary(arg, args.get(pos - 1), io);
+            }
+            pos++;
+            return arg.isEmpty() ? 1 : 0;
+        }
+    }
+
+    private static int unary(String op, String operand, IoContext io) throws IOException {
+        if (op.equals("-z")) {
+            return operand.isEmpty() ? 0 : 1;
+        }
+        if (op.equals("-n")) {
+            return operand.isEmpty() ? 1 : 0;
+        }
+        File file = new File(io.shell().resolvePath(operand));
+        boolean result;
+        switch (op) {
+            case "-e" -> result = file.exists();
+            case "-f" -> result = file.isFile();
+            case "-d" -> result = file.isDirectory();
+            case "-r" -> result = file.canRead();
+            case "-w" -> result = file.canWrite();
+            case "-x" -> result = file.canExecute();
+            case "-s" -> result = file.length() > 0;
+            default -> {
+                io.err().println("test: " + op + ": unary operator expected");
+                return 2;
+            }
+        }
+        return result ? 0 : 1;
+    }
+
+    private static int binary(String left, String op, String right, IoContext io) throws IOException {
+        switch (op) {
+            case "=", "==" -> {
+                return left.equals(right) ? 0 : 1;
+            }
+            case "!=" -> {
+                return left.equals(right) ? 1 : 0;
+            }
+            default -> {
+            }
+        }
+
+        long a;
+        long b;
+        try {
+            a = Long.parseLong(left.trim());
+            b = Long.parseLong(right.trim());
+        } catch (NumberFormatException e) {
+            io.err().println("test: integer expression expected");
+            return 2;
+        }
+        boolean result;
+        switch (op) {
+            case "-eq" -> result = a == b;
+            case "-ne" -> result = a != b;
+            case "-lt" -> result = a < b;
+            case "-le" -> result = a <= b;
+            case "-gt" -> result = a > b;
+            case "-ge" -> result = a >= b;
+            default -> {
+                io.err().println("test: " + op + ": binary operator expected");
+                return 2;
+            }
+        }
+        return result ? 0 : 1;
+    }
+
+    // Apply the format once, returning the index of the next unused argument
+    private static int formatOnce(String format, List<String> args, int next, StringBuilder output) {
+        int consumed = next;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '\\' && i + 1 < format.length()) {
+                char e = format.charAt(++i);
+                switch (e) {
+                    case 'n' -> output.append('\n');
+                    case 't' -> output.append('\t');
+                    case 'r' -> output.append('\r');
+                    case '\\' -> output.append('\\');
+                    default -> output.append('\\').append(e);
+                }
+            } else if (c == '%' && i + 1 < format.length()) {
+                int start = i++;
+                int flagsStart = i;
+                while (i < format.length() && "-+ #0".indexOf(format.charAt(i)) >= 0) {
+                    i++;
+                }
+                String flags = format.substring(flagsStart, i);
+                int width = 0;
+                while (i < format.length() && Character.isDigit(format.charAt(i))) {
+                    width = width * 10 + format.charAt(i++) - '0';
+                }
+                int precision = -1;
+                if (i < format.length() && format.charAt(i) == '.') {
+                    precision = 0;
+                    while (++i < format.length() && Character.isDigit(format.charAt(i))) {
+                        precision = precision * 10 + format.charAt(i) - '0';
+                    }
+                }
+                // C's length modifiers mean nothing here
+                while (i < format.length() && "hlLjzt".indexOf(format.charAt(i)) >= 0) {
+                    i++;
+                }
+                if (i >= format.length()) {
+                    throw new IllegalArgumentException("`" + format.substring(start) + "': missing format character");
+                }
+                char conversion = format.charAt(i);
+                if (conversion == '%' && i == start + 1) {
+                    output.append('%');
+                    continue;
+                }
+                if ("diouxXfFeEgGcsbq".indexOf(conversion) < 0) {
+                    throw new IllegalArgumentException("`" + conversion + "': invalid format character");
+                }
+                String arg = consumed < args.size() ? args.get(consumed++) : "";
+                formatArgument(flags, width, precision, conversion, arg, output);
+            } else {
+                output.append(c);
+            }
+        }
+        return consumed == next ? 0 : consumed;
+    }
+
+    // One conversion, with C's flags, width and precision rather than java.util.Formatter's,
+    // which rejects combinations C accepts such as %05s or %#d
+    private static void formatArgument(String flags, int width, int precision, char conversion, String arg,
+                                       StringBuilder output) {
+        boolean left = flags.indexOf('-') >= 0;
+        String text;
+        String prefix = "";
+        boolean zeroPad = false;
+        switch (conversion) {
+            case 'd', 'i', 'o', 'u', 'x', 'X' -> {
+                long value = parseLong(arg);
+                boolean signed = conversion == 'd' || conversion == 'i';
+                // Negative values are printed unsigned by the unsigned conversions, as in C
+                text = switch (conversion) {
+                    case 'o' -> Long.toOctalString(value);
+                    case 'x' -> Long.toHexString(value);
+                    case 'X' -> Long.toHexString(value).toUpperCase(Locale.ROOT);
+                    case 'u' -> Long.toUnsignedString(value);
+                    default -> value < 0 ? Long.toString(value).substring(1) : Long.toString(value);
+                };
+                if (precision == 0 && value == 0) {
+                    text = "";
+                }
+                if (precision > text.length()) {
+                    text = "0".repeat(precision - text.length()) + text;
+                }
+                if (signed) {
+                    prefix = value < 0 ? "-" : flags.indexOf('+') >= 0 ? "+" : flags.indexOf(' ') >= 0 ? " " : "";
+                } else if (flags.indexOf('#') >= 0) {
+                    if (conversion == 'o' && !text.startsWith("0")) {
+                        text = "0" + text;
+                    } else if ((conversion == 'x' || conversion == 'X') && value != 0) {
+                        prefix = conversion == 'x' ? "0x" : "0X";
+                    }
+                }
+                zeroPad = flags.indexOf('0') >= 0 && !left && precision < 0;
+            }
+            case 'f', 'F', 'e', 'E', 'g', 'G' -> {
+                double value = parseDouble(arg);
+                boolean upper = Character.isUpperCase(conversion);
+                char lower = Character.toLowerCase(conversion);
+                StringBuilder spec = new StringBuilder("%");
+                if (flags.indexOf('+') >= 0) {
+                    spec.append('+');
+                } else if (flags.indexOf(' ') >= 0) {
+                    spec.append(' ');
+                }
+                // Formatter has no # for %g; its %g already keeps trailing zeros, as C's %#g does
+                if (flags.indexOf('#') >= 0 && lower != 'g') {
+                    spec.append('#');
+                }
+                if (precision >= 0) {
+                    spec.append('.').append(precision);
+                }
+                text = String.format(Locale.ROOT, spec.append(lower).toString(), value);
+                if (lower == 'g' && flags.indexOf('#') < 0) {
+                    text = stripTrailingZeros(text);
+                }
+                if (upper) {
+                    text = text.toUpperCase(Locale.ROOT);
+                }
+                if (Double.isFinite(value) && (text.startsWith("-") || text.startsWith("+") || text.startsWith(" "))) {
+                    prefix = text.substring(0, 1);
+                    text = text.substring(1);
+                }
+                zeroPad = flags.indexOf('0') >= 0 && !left && Double.isFinite(value);
+            }
+            case 'c' -> text = arg.isEmpty() ? "" : arg.substring(0, 1);
+            default -> text = precision >= 0 && precision < arg.length() ? arg.substring(0, precision) : arg;
+        }
+        int padding = width - prefix.length() - text.length();
+        if (padding <= 0) {
+            output.append(prefix).append(text);
+        } else if (left) {
+            output.append(prefix).append(text).append(" ".repeat(padding));
+        } else if (zeroPad) {
+            output.append(prefix).append("0".repeat(padding)).append(text);
+        } else {
+            output.append(" ".repeat(padding)).append(prefix).append(text);
+        }
+    }
+
+    // %g without # drops trailing zeros from the fraction, and a bare decimal point
+    private static String stripTrailingZeros(String text) {
+        int exponent = text.indexOf('e');
+        String mantissa = exponent < 0 ? text : text.substring(0, exponent);
+        if (mantissa.indexOf('.') < 0) {
+            return text;
+        }
+        int end = mantissa.length();
+        while (mantissa.charAt(end - 1) == '0') {
+            end--;
+        }
+        if (mantissa.charAt(end - 1) == '.') {
+            end--;
+        }
+        return mantissa.substring(0, end) + (exponent < 0 ? "" : text.substring(exponent));
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return s.isEmpty() ? 0 : Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String s) {
+        try {
+            return s.isEmpty() ? 0 : Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void copy(InputStream in, OutputSink out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    // Lines, words and bytes, counted on raw bytes without decoding
+    private static long[] count(InputStream in) throws IOException {
+        long lines = 0;
+        long words = 0;
+        long bytes = 0;
+        boolean inWord = false;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes += n;
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    lines++;
+                }
+                boolean space = b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+                if (!space && !inWord) {
+                    words++;
+                }
+                inWord = !space;
+            }
+        }
+        return new long[] {lines, words, bytes};
+    }
+
+    private static void headOf(InputStream in, OutputSink out, long limit, boolean byBytes) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = limit;
+        int n;
+        while (remaining > 0 && (n = in.read(buffer)) > 0) {
+            int end = 0;
+            if (byBytes) {
+                end = (int) Math.min(n, remaining);
+                remaining -= end;
+            } else {
+                while (end < n && remaining > 0) {
+                    if (buffer[end++] == '\n') {
+                        remaining--;
+                    }
+                }
+            }
+            out.write(buffer, 0, end);
+        }
+    }
+
+    private static void pad(StringBuilder line, long value, int width) {
+        String s = Long.toString(value);
+        if (line.length() > 0) {
+            line.append(' ');
+        }
+        for (int i = s.length(); i < width; i++) {
+            line.append(' ');
+        }
+        line.append(s);
+    }
+}
@@ -0,0 +1,89 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Commands are found on, and run from, the session's PATH rather than the JVM's
+class CommandPathTest {
+    @TempDir
+    Path directory;
+
+    private String output;
+    private String errors;
+
+    private int run(String script) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Shell shell = new Shell(InputStream.nullInputStream(), new PrintStream(out, true), new PrintStream(err, true),
+                System.getenv(), directory.toString(), List.of("-c", script), false, false);
+        int status = shell.run();
+        output = out.toString(StandardCharsets.UTF_8);
+        errors = err.toString(StandardCharsets.UTF_8);
+        return status;
+    }
+
+    private Path tool(String dir, String text) throws Exception {
+        Path bin = Files.createDirectories(directory.resolve(dir));
+        Path tool = bin.resolve("mytool");
+        Files.writeString(tool, "#!/bin/sh\necho " + text + " \"$@\"\n");
+        tool.toFile().setExecutable(true);
+        return bin;
+    }
+
+    @Test
+    void exportedDirectoryIsSearched() throws Exception {
+        Path bin = tool("bin", "first");
+        assertEquals(0, run("export PATH=" + bin + ":$PATH\nmytool a b"));
+        assertEquals("first a b\n", output);
+    }
+
+    @Test
+    void changingPathForgetsHashedLocations() throws Exception {
+        Path first = tool("bin", "first");
+        Path second = tool("bin2", "second");
+        run("PATH=" + first + ":$PATH\nmytool\nPATH=" + second + ":$PATH\nmytool\ntype mytool");
+        assertEquals("first\nsecond\nmytool is " + second.resolve("mytool") + "\n", output);
+    }
+
+    @Test
+    void prefixAssignmentAppliesToOneCommand() throws Exception {
+        Path bin = tool("bin", "first");
+        assertEquals(127, run("PATH=" + bin + " mytool\nmytool"));
+        assertEquals("first\n", output);
+        assertEquals("mytool: command not found\n", errors);
+    }
+
+    @Test
+    void pipelineStagesUseSessionPath() throws Exception {
+        Path bin = tool("bin", "first");
+        run("export PATH=" + bin + ":$PATH\nmytool x | mytool y");
+        assertEquals("first y\n", output);
+    }
+
+    // GNU ls names itself by argv[0] in its messages
+    @Test
+    void childSeesTheNameAsTyped() throws Exception {
+        Path bin = Files.createDirectories(directory.resolve("bin"));
+        Path ls = Files.exists(Path.of("/bin/ls")) ? Path.of("/bin/ls") : Path.of("/usr/bin/ls");
+        Files.createSymbolicLink(bin.resolve("showarg"), ls);
+        run("ls " + directory.resolve("nosuch"));
+        assertEquals("ls:", errors.substring(0, 3));
+        run("export PATH=" + bin + ":$PATH\nshowarg " + directory.resolve("nosuch"));
+        assertEquals("showarg:", errors.substring(0, 8));
+    }
+
+    @Test
+    void notExecutableIsDistinctFromMissing() throws Exception {
+        Path file = Files.writeString(directory.resolve("plain"), "echo no\n");
+        assertEquals(126, run(file.toString()));
+        assertEquals(127, run(directory.resolve("missing").toString()));
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Terminal input arrives in whatever pieces read() returns, so every sequence is fed both
+// whole and split at each byte boundary
+class KeyDecoderTest {
+    private static final byte ESC = 0x1b;
+
+    // The keys decoded from the chunks fed in order to one decoder, NONE results left out
+    private static List<Integer> decode(KeyDecoder decoder, byte[]... chunks) {
+        List<Integer> keys = new ArrayList<>();
+        for (byte[] chunk : chunks) {
+            for (byte b : chunk) {
+                int key = decoder.feed(b);
+                if (key != KeyDecoder.NONE) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static List<Integer> decode(byte[]... chunks) {
+        return decode(new KeyDecoder(), chunks);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertEverySplit(byte[] input, List<Integer> expected) {
+        for (int split = 0; split <= input.length; split++) {
+            List<Integer> keys = decode(Arrays.copyOfRange(input, 0, split), Arrays.copyOfRange(input, split, input.length));
+            assertEquals(expected, keys, "split at " + split);
+        }
+    }
+
+    @Test
+    void plainTextAndControlKeys() {
+        assertEquals(List.of((int) 'l', (int) 's', KeyDecoder.TAB, KeyDecoder.BACKSPACE, KeyDecoder.ENTER),
+                decode(bytes("ls\t\u007f\r")));
+        assertEquals(List.of(KeyDecoder.INTERRUPT, KeyDecoder.EOF, KeyDecoder.KILL_LINE, KeyDecoder.DELETE_WORD),
+                decode(new byte[] {0x03, 0x04, 0x15, 0x17}));
+    }
+
+    @Test
+    void escapeSequenceSplitAcrossReads() {
+        assertEverySplit(new byte[] {ESC, '[', 'A'}, List.of(KeyDecoder.UP));
+        assertEverySplit(new byte[] {ESC, 'O', 'H'}, List.of(KeyDecoder.HOME));
+        assertEverySplit(new byte[] {'a', ESC, '[', 'D', 'b'}, List.of((int) 'a', KeyDecoder.LEFT, (int) 'b'));
+    }
+
+    @Test
+    void csiSequencesWithParameters() {
+        assertEquals(List.of(KeyDecoder.DELETE), decode(new byte[] {ESC, '[', '3', '~'}));
+        assertEquals(List.of(KeyDecoder.HOME, KeyDecoder.END), decode(bytes("\u001b[1~\u001b[4~")));
+        assertEquals(List.of(KeyDecoder.HOME, KeyDecoder.END), decode(bytes("\u001b[7~\u001b[8~")));
+        // Ctrl+Right: the modifier parameter is ignored
+        assertEverySplit(bytes("\u001b[1;5C"), List.of(KeyDecoder.RIGHT));
+        // Insert is not bound
+        assertEquals(List.of(KeyDecoder.UNKNOWN, (int) 'x'), decode(bytes("\u001b[2~x")));
+        // A long parameter does not leave the decoder mid-sequence
+        assertEquals(List.of(KeyDecoder.DELETE, (int) 'y'), decode(bytes("\u001b[0003~y")));
+    }
+
+    @Test
+    void loneEscape() {
+        KeyDecoder decoder = new KeyDecoder();
+        // Pending until the next byte says whether a sequence follows
+        assertEquals(List.of(), decode(decoder, new byte[] {ESC}));
+        // ESC and a plain key is Meta plus that key, which nothing is bound to
+        assertEquals(List.of(KeyDecoder.UNKNOWN), decode(decoder, bytes("x")));
+        assertEquals(List.of((int) 'y'), decode(decoder, bytes("y")));
+    }
+
+    @Test
+    void resetDropsAPendingEscape() {
+        KeyDecoder decoder = new KeyDecoder();
+        decode(decoder, new byte[] {ESC});
+        decoder.reset();
+        assertEquals(List.of((int) '['), decode(decoder, bytes("[")));
+        decode(decoder, new byte[] {(byte) 0xe2, (byte) 0x82});
+        decoder.reset();
+        assertEquals(List.of((int) 'a'), decode(decoder, bytes("a")));
+    }
+
+    @Test
+    void multibyteUtf8SplitAtEveryByte() {
+        // Two, three and four bytes, then all of them mixed with ASCII
+        for (String text : List.of("é", "€", "😀", "aé€😀z")) {
+            assertEverySplit(bytes(text), text.codePoints().boxed().toList());
+        }
+    }
+
+    @Test
+    void utf8OneByteAtATime() {
+        String text = "naïve €5 😀";
+        byte[] input = bytes(text);
+        byte[][] chunks = new byte[input.length][];
+        for (int i = 0; i < input.length; i++) {
+            chunks[i] = new byte[] {input[i]};
+        }
+        assertEquals(text.codePoints().boxed().toList(), decode(chunks));
+    }
+
+    @Test
+    void brokenUtf8() {
+        // A lead byte followed by something other than a continuation byte: the byte that
+        // broke the sequence goes with it, and decoding carries on after
+        assertEquals(List.of(KeyDecoder.UNKNOWN, (int) 'b'), decode(new byte[] {(byte) 0xc3, 'a', 'b'}));
+        // A stray continuation byte
+        assertEquals(List.of(KeyDecoder.UNKNOWN, (int) 'b'), decode(new byte[] {(byte) 0x80, 'b'}));
+    }
+}